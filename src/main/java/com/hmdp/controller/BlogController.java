@@ -66,6 +66,18 @@ public class BlogController {
         return blogService.queryHotBlog(current);
     }
 
+    /**
+     * 按热门榜快照滚动分页
+     * @param version 上一页返回的快照版本(minTime)，第一页不传
+     * @param offset 上一页返回的offset
+     */
+    @GetMapping("/hot/scroll")
+    public Result queryHotBlogScroll(
+            @RequestParam(value = "lastId", required = false) Long version,
+            @RequestParam(value = "offset", defaultValue = "0") Integer offset) {
+        return blogService.queryHotBlogScroll(version, offset);
+    }
+
     @GetMapping("/{id}")
     public Result queryBlogById(@PathVariable(value = "id") Long id) {
         return blogService.queryBlogById(id);
@@ -0,0 +1,108 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.CacheRebuildScheduler;
+import com.hmdp.utils.CacheWarmer;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.OffHeapCache;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 缓存管理
+ * </p>
+ *
+ * @author kaka
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    @Resource
+    private CacheWarmer cacheWarmer;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private CacheRebuildScheduler cacheRebuildScheduler;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private OffHeapCache offHeapCache;
+
+    /**
+     * 手动触发缓存预热
+     * @return 每种类型预热的数量
+     */
+    @PostMapping("/warm-up")
+    public Result warmUp() {
+        return Result.ok(cacheWarmer.warmUp());
+    }
+
+    /**
+     * 查询当前集群的热点key
+     * @return 热点key -> 上一个统计窗口的访问次数
+     */
+    @GetMapping("/hot-keys")
+    public Result hotKeys() {
+        return Result.ok(hotKeyDetector.hotKeys());
+    }
+
+    /**
+     * 查询缓存重建的运行指标
+     * @return 队列长度、重建耗时、失败次数等
+     */
+    @GetMapping("/rebuild-stats")
+    public Result rebuildStats() {
+        return Result.ok(cacheRebuildScheduler.stats());
+    }
+
+    /**
+     * 店铺类型变更后，通知所有节点刷新店铺类型快照
+     */
+    @PostMapping("/shop-type/refresh")
+    public Result refreshShopType() {
+        shopTypeService.refreshVersion();
+        return Result.ok();
+    }
+
+    /**
+     * 从数据库全量重建店铺的redis GEO和内存地理索引
+     * @return 写入的店铺数
+     */
+    @PostMapping("/shop-geo/rebuild")
+    public Result rebuildShopGeo() {
+        return shopService.rebuildGeo();
+    }
+
+    /**
+     * 从数据库全量重建店铺名称索引
+     * @return 索引的店铺数
+     */
+    @PostMapping("/shop-name-index/rebuild")
+    public Result rebuildShopNameIndex() {
+        return shopService.rebuildNameIndex();
+    }
+
+    /**
+     * 查询堆外缓存的使用情况
+     */
+    @GetMapping("/off-heap-stats")
+    public Result offHeapStats() {
+        return Result.ok(offHeapCache.stats());
+    }
+}
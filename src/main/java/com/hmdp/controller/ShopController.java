@@ -1,12 +1,13 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopFilter;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
-import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserHolder;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -29,11 +30,13 @@ public class ShopController {
     /**
      * 根据id查询商铺信息
      * @param id 商铺id
-     * @return 商铺详情数据
+     * @return 商铺详情数据，缓存命中时直接返回缓存中序列化好的json
      */
     @GetMapping("/{id}")
-    public Result queryShopById(@PathVariable("id") Long id) {
-        return shopService.queryById(id);
+    public ResponseEntity<byte[]> queryShopById(@PathVariable("id") Long id) {
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(shopService.queryJsonById(id));
     }
 
     /**
@@ -43,10 +46,7 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -60,10 +60,28 @@ public class ShopController {
         return shopService.update(shop);
     }
 
+    /**
+     * 删除商铺
+     * @param id 商铺id
+     * @return 无
+     */
+    @DeleteMapping("/{id}")
+    public Result deleteShop(@PathVariable("id") Long id) {
+        // /shop/** 不经过登录拦截器，删除需要登录
+        if (UserHolder.getUser() == null) {
+            return Result.fail("请先登录");
+        }
+        return shopService.deleteShop(id);
+    }
+
     /**
      * 根据商铺类型分页查询商铺信息
      * @param typeId 商铺类型
      * @param current 页码
+     * @param radius 搜索半径(m)
+     * @param lastDistance 游标: 上一页最后一家店铺的距离，与lastId一起传入时按游标翻页，忽略current
+     * @param lastId 游标: 上一页最后一家店铺的id
+     * @param filter 筛选和排序条件: minPrice maxPrice minScore openNow sortBy
      * @return 商铺列表
      */
     @GetMapping("/of/type")
@@ -71,9 +89,13 @@ public class ShopController {
             @RequestParam("typeId") Integer typeId,
             @RequestParam(value = "current", defaultValue = "1") Integer current,
             @RequestParam(value = "x",required = false) Double x,
-            @RequestParam(value = "y",required = false) Double y) {
+            @RequestParam(value = "y",required = false) Double y,
+            @RequestParam(value = "radius", defaultValue = "5000") Double radius,
+            @RequestParam(value = "lastDistance", required = false) Double lastDistance,
+            @RequestParam(value = "lastId", required = false) Long lastId,
+            ShopFilter filter) {
 
-        return shopService.queryShopByType(typeId, current, x, y);
+        return shopService.queryShopByType(typeId, current, x, y, radius, lastDistance, lastId, filter);
     }
 
     /**
@@ -87,11 +109,16 @@ public class ShopController {
             @RequestParam(value = "name", required = false) String name,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .like(StrUtil.isNotBlank(name), "name", name)
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        return shopService.queryShopByName(name, current);
+    }
+
+    /**
+     * 搜索框联想
+     * @param prefix 已输入的内容
+     * @return 店铺名称列表
+     */
+    @GetMapping("/suggest")
+    public Result suggestShopName(@RequestParam(value = "prefix", required = false) String prefix) {
+        return shopService.suggestShopName(prefix);
     }
 }
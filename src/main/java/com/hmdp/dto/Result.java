@@ -4,6 +4,7 @@ import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 @Data
@@ -15,6 +16,8 @@ public class Result {
     private Object data;
     private Long total;
 
+    private static final byte[] OK_PREFIX = "{\"success\":true,\"data\":".getBytes(StandardCharsets.UTF_8);
+
     public static Result ok(){
         return new Result(true, null, null, null);
     }
@@ -27,4 +30,16 @@ public class Result {
     public static Result fail(String errorMsg){
         return new Result(false, errorMsg, null, null);
     }
+
+    /**
+     * 用已经序列化好的data拼出 Result.ok(data) 的响应体，与Jackson序列化的结果一致
+     */
+    public static byte[] okJson(String dataJson){
+        byte[] data = dataJson.getBytes(StandardCharsets.UTF_8);
+        byte[] body = new byte[OK_PREFIX.length + data.length + 1];
+        System.arraycopy(OK_PREFIX, 0, body, 0, OK_PREFIX.length);
+        System.arraycopy(data, 0, body, OK_PREFIX.length, data.length);
+        body[body.length - 1] = '}';
+        return body;
+    }
 }
@@ -0,0 +1,55 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+/**
+ * 附近店铺的筛选和排序条件
+ * @author kaka
+ */
+@Data
+public class ShopFilter {
+
+    public static final String SORT_DISTANCE = "distance";
+    public static final String SORT_SCORE = "score";
+    public static final String SORT_SOLD = "sold";
+    public static final String SORT_PRICE = "price";
+
+    /**
+     * 最低均价
+     */
+    private Long minPrice;
+
+    /**
+     * 最高均价
+     */
+    private Long maxPrice;
+
+    /**
+     * 最低评分，与数据库一致乘10，例如45表示4.5分
+     */
+    private Integer minScore;
+
+    /**
+     * 只看正在营业的
+     */
+    private Boolean openNow;
+
+    /**
+     * 排序字段: distance(默认) score sold price
+     */
+    private String sortBy;
+
+    /**
+     * 是否有筛选条件
+     */
+    public boolean hasCondition() {
+        return minPrice != null || maxPrice != null || minScore != null || Boolean.TRUE.equals(openNow);
+    }
+
+    /**
+     * 是否按距离排序
+     */
+    public boolean sortByDistance() {
+        return sortBy == null || SORT_DISTANCE.equals(sortBy);
+    }
+}
@@ -0,0 +1,28 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.ShopType;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * 店铺类型的不可变快照，包含预先序列化好的响应体
+ */
+@Getter
+@AllArgsConstructor
+public class ShopTypeSnapshot {
+    /**
+     * 快照对应的redis版本号
+     */
+    private final String version;
+    /**
+     * 按sort排序的店铺类型，不可修改
+     */
+    private final List<ShopType> types;
+    /**
+     * Result.ok(types) 序列化后的json
+     */
+    private final byte[] body;
+    private final String etag;
+}
@@ -2,6 +2,7 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.cursor.Cursor;
 
 /**
  * <p>
@@ -13,4 +14,13 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface ShopMapper extends BaseMapper<Shop> {
 
+    /**
+     * 流式读取所有有坐标的店铺的id、坐标和类型，需要在事务中遍历，用完关闭
+     */
+    Cursor<Shop> scanLocations();
+
+    /**
+     * 按id升序流式读取所有店铺的名称、商圈、销量和评分，需要在事务中遍历，用完关闭
+     */
+    Cursor<Shop> scanNames();
 }
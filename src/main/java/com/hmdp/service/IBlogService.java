@@ -18,6 +18,8 @@ public interface IBlogService extends IService<Blog> {
 
     Result queryHotBlog(Integer current);
 
+    Result queryHotBlogScroll(Long version, Integer offset);
+
     Result likeBlog(Long id);
 
     Result likesBlog(Long id);
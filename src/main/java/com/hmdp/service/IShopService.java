@@ -1,6 +1,7 @@
 package com.hmdp.service;
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopFilter;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -16,7 +17,22 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    byte[] queryJsonById(Long id);
+
+    Result saveShop(Shop shop);
+
     Result update(Shop shop);
 
-    Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+    Result deleteShop(Long id);
+
+    Result rebuildGeo();
+
+    Result rebuildNameIndex();
+
+    Result queryShopByName(String name, Integer current);
+
+    Result suggestShopName(String prefix);
+
+    Result queryShopByType(Integer typeId, Integer current, Double x, Double y,
+                           Double radius, Double lastDistance, Long lastId, ShopFilter filter);
 }
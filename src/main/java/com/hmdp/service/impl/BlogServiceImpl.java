@@ -1,9 +1,15 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.date.LocalDateTimeUtil;
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
@@ -15,25 +21,45 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheWarmer;
+import com.hmdp.utils.FeedFanout;
+import com.hmdp.utils.FeedMerger;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RBloomFilter;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Set;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
-import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -58,80 +84,829 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private CacheWarmer cacheWarmer;
+
+    @Resource
+    private FeedFanout feedFanout;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private ObjectMapper objectMapper;
+
+    //加载lua脚本
+    private static final DefaultRedisScript<Long> LIKE_SCRIPT;
+    static {
+        LIKE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_SCRIPT.setLocation(new ClassPathResource("like.lua"));
+        LIKE_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> LIKED_COUNT_SCRIPT;
+    static {
+        LIKED_COUNT_SCRIPT = new DefaultRedisScript<>();
+        LIKED_COUNT_SCRIPT.setLocation(new ClassPathResource("liked_count.lua"));
+        LIKED_COUNT_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> LIKE_MIGRATE_SCRIPT;
+    static {
+        LIKE_MIGRATE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_MIGRATE_SCRIPT.setLocation(new ClassPathResource("like_migrate.lua"));
+        LIKE_MIGRATE_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> FEED_PREFETCH_SCRIPT;
+    static {
+        FEED_PREFETCH_SCRIPT = new DefaultRedisScript<>();
+        FEED_PREFETCH_SCRIPT.setLocation(new ClassPathResource("feed_prefetch.lua"));
+        FEED_PREFETCH_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> LIKE_REFILL_SCRIPT;
+    static {
+        LIKE_REFILL_SCRIPT = new DefaultRedisScript<>();
+        LIKE_REFILL_SCRIPT.setLocation(new ClassPathResource("like_refill.lua"));
+        LIKE_REFILL_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 点赞用户位图每个分片的位数，用户id按该值分片，一个分片最多512字节
+     * 分片较小时点赞少的笔记只占用很少的内存，修改后已有的位图无法读取
+     */
+    private static final long LIKE_SHARD_BITS = 4096;
+
+    /**
+     * 最早点赞用户保留的人数，多于展示的5人，部分用户取消点赞后仍能展示；不足5人时从位图补充
+     */
+    private static final int LIKE_FIRST_SIZE = 10;
+
+    /**
+     * 迁移旧点赞集合时每批的用户数
+     */
+    private static final int LIKE_MIGRATE_BATCH = 500;
+
+    /**
+     * 每次迁移最多执行的批数，剩下的留给下一次，避免长时间占用定时任务线程
+     */
+    @Value("${hmdp.blog.like-migrate-max-batches:20}")
+    private int likeMigrateMaxBatches;
+
+    /**
+     * 粉丝数达到该值的作者只写发件箱，粉丝读取关注流时再拉取
+     */
+    @Value("${hmdp.feed.big-author-threshold:5000}")
+    private int bigAuthorThreshold;
+
+    /**
+     * 收件箱和发件箱保留的最新条数，更早的从数据库查询
+     */
+    @Value("${hmdp.feed.capacity:1000}")
+    private int feedCapacity;
+
+    /**
+     * 关注流每页条数
+     */
+    @Value("${hmdp.feed.page-size:2}")
+    private int feedPageSize;
+
+    /**
+     * 返回一页关注流后是否异步预读下一页
+     */
+    @Value("${hmdp.feed.prefetch.enabled:true}")
+    private boolean feedPrefetchEnabled;
+
+    @Value("${hmdp.feed.prefetch.threads:4}")
+    private int feedPrefetchThreads;
+
+    /**
+     * 预读的下一页保留的时间(秒)
+     */
+    @Value("${hmdp.feed.prefetch.ttl:30}")
+    private long feedPrefetchTtl;
+
+    private ThreadPoolExecutor feedPrefetchExecutor;
+
+    /**
+     * 热度衰减系数，热度 = (点赞数 + 1) / (发布小时数 + 2) ^ gravity
+     */
+    @Value("${hmdp.blog.hot.gravity:1.8}")
+    private double hotGravity;
+
+    /**
+     * 参与热门排行的笔记的发布天数
+     */
+    @Value("${hmdp.blog.hot.window-days:30}")
+    private int hotWindowDays;
+
+    /**
+     * 热门榜保留的笔记数
+     */
+    @Value("${hmdp.blog.hot.size:1000}")
+    private int hotSize;
+
+    /**
+     * 快照中预先填充好的页数
+     */
+    @Value("${hmdp.blog.hot.pages:5}")
+    private int hotPages;
+
+    @Value("${hmdp.blog.hot.snapshot-interval:60000}")
+    private long hotSnapshotInterval;
+
+    @Value("${hmdp.blog.bloom.enabled:true}")
+    private boolean bloomEnabled;
+
+    @Value("${hmdp.blog.bloom.expected-insertions:1000000}")
+    private long bloomExpectedInsertions;
+
+    @Value("${hmdp.blog.bloom.false-probability:0.01}")
+    private double bloomFalseProbability;
+
+    /**
+     * 所有笔记id的布隆过滤器，缓存未命中时判断笔记是否可能存在
+     */
+    private RBloomFilter<Long> blogBloomFilter;
+
+    /**
+     * 布隆过滤器是否已包含全部笔记，加载完成前不拦截
+     */
+    private volatile boolean bloomReady;
+
+    /**
+     * 旧的点赞用户集合 blog:liked:{id} 是否已全部迁移，迁移完成前查询点赞状态时同时查询旧集合
+     */
+    private volatile boolean likesMigrated;
+
+    @PostConstruct
+    private void init() {
+        likesMigrated = BooleanUtil.isTrue(stringRedisTemplate.hasKey(BLOG_LIKE_MIGRATED_KEY));
+        //注册笔记缓存预热 并写入本地快照
+        cacheWarmer.register(CacheWarmer.BLOG, CACHE_BLOG_KEY, this::warmUpCache, this::queryUpdateTimes);
+        if (bloomEnabled) {
+            blogBloomFilter = redissonClient.getBloomFilter(BLOG_BLOOM_KEY);
+            blogBloomFilter.tryInit(bloomExpectedInsertions, bloomFalseProbability);
+        }
+        if (feedPrefetchEnabled) {
+            // 预读只是优化，线程忙时直接丢弃，下一页到时再正常查询
+            AtomicInteger threadIndex = new AtomicInteger();
+            feedPrefetchExecutor = new ThreadPoolExecutor(feedPrefetchThreads, feedPrefetchThreads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(feedPrefetchThreads * 16), r -> {
+                        Thread thread = new Thread(r, "feed-prefetch-" + threadIndex.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }, new ThreadPoolExecutor.DiscardPolicy());
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (feedPrefetchExecutor != null) {
+            feedPrefetchExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 查询笔记详情
+     * 笔记内容发布后基本不变，通过逻辑过期缓存；点赞数等易变字段读取时从redis计数中合并，不访问数据库
+     * 评论数(comments)直接使用缓存中的值，最多落后 CACHE_BLOG_TTL；目前没有写评论的接口，
+     * 以后增加时需要在事务提交后刷新或删除 cache:blog:{id}，或者像点赞数一样维护计数并在这里合并
+     */
     @Override
     public Result queryBlogById(Long id) {
-        Blog blog = this.getById(id);
+        //记录访问 用于缓存预热
+        cacheWarmer.recordAccess(CacheWarmer.BLOG, id);
+        Blog blog = cacheClient.queryWithLogicalExpire(
+                CACHE_BLOG_KEY, id, Blog.class, this::loadBlog, CACHE_BLOG_TTL, TimeUnit.MINUTES);
 
         if (blog == null) {
             return Result.fail("笔记不存在");
         }
-        queryBlogUser(blog);
-        //查询blog是否被当前访问用户点赞
-        isBlogLiked(blog);
+        //查询作者、点赞数，以及blog是否被当前访问用户点赞
+        hydrate(Collections.singletonList(blog));
         return Result.ok(blog);
     }
 
-    private void isBlogLiked(Blog blog) {
-        UserDTO user = UserHolder.getUser();
-        if (user == null) {
+    /**
+     * 缓存未命中或重建时查询数据库
+     * 布隆过滤器判断不存在的直接返回null(由CacheClient缓存空值)，同时初始化redis中的点赞数
+     */
+    private Blog loadBlog(Long id) {
+        if (bloomReady && !blogBloomFilter.contains(id)) {
+            return null;
+        }
+        Blog blog = getById(id);
+        if (blog != null) {
+            initLikedCounts(Collections.singletonList(id));
+        }
+        return blog;
+    }
+
+    /**
+     * 批量预热笔记缓存
+     * @param ids 笔记id
+     */
+    public void warmUpCache(List<Long> ids) {
+        List<Blog> blogs = this.listByIds(ids);
+        Map<String, Blog> values = new HashMap<>(blogs.size());
+        for (Blog blog : blogs) {
+            values.put(CACHE_BLOG_KEY + blog.getId(), blog);
+        }
+        cacheClient.setWithLogicalExpireBatch(values, CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        initLikedCounts(ids);
+    }
+
+    /**
+     * 批量查询笔记的更新时间，用于校验缓存快照
+     * @param ids 笔记id
+     * @return id -> updateTime
+     */
+    public Map<Long, LocalDateTime> queryUpdateTimes(Collection<Long> ids) {
+        List<Blog> blogs = query().select("id", "update_time").in("id", ids).list();
+        Map<Long, LocalDateTime> updateTimes = new HashMap<>(blogs.size());
+        for (Blog blog : blogs) {
+            updateTimes.put(blog.getId(), blog.getUpdateTime());
+        }
+        return updateTimes;
+    }
+
+    /**
+     * 初始化redis中的点赞数 = 数据库中的点赞数 + 还未写入数据库的变化，之后由点赞脚本维护
+     * 持有写库任务的锁，保证读取数据库和读取变化之间没有写库，已初始化的不覆盖
+     */
+    private void initLikedCounts(List<Long> ids) {
+        if (ids.isEmpty()) {
             return;
         }
-        Long userId = user.getId();
-        String key = BLOG_LIKED_KEY + blog.getId();
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        blog.setIsLike(score != null);
+        RLock lock = redissonClient.getLock(LOCK_BLOG_LIKE_FLUSH_KEY);
+        try {
+            if (!lock.tryLock(1, TimeUnit.SECONDS)) {
+                // 没有初始化时读取仍按 数据库 + 变化 计算
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            List<Blog> blogs = query().select("id", "liked").in("id", ids).list();
+            List<String> keys = Arrays.asList(BLOG_LIKE_COUNT_KEY, BLOG_LIKE_DELTA_KEY, BLOG_LIKE_FLUSHING_KEY);
+            for (Blog blog : blogs) {
+                stringRedisTemplate.execute(LIKED_COUNT_SCRIPT, keys,
+                        blog.getId().toString(), String.valueOf(Convert.toInt(blog.getLiked(), 0)));
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
+    /**
+     * 启动后把全部笔记id加入布隆过滤器，已经加载过的不再重复加载
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadBloomFilter() {
+        if (!bloomEnabled) {
+            return;
+        }
+        if (BooleanUtil.isTrue(stringRedisTemplate.hasKey(BLOG_BLOOM_READY_KEY))) {
+            bloomReady = true;
+            return;
+        }
+        try {
+            long lastId = 0;
+            int count = 0;
+            while (true) {
+                List<Blog> blogs = query().select("id").gt("id", lastId).orderByAsc("id").last("LIMIT 1000").list();
+                for (Blog blog : blogs) {
+                    blogBloomFilter.add(blog.getId());
+                }
+                count += blogs.size();
+                if (blogs.size() < 1000) {
+                    break;
+                }
+                lastId = blogs.get(blogs.size() - 1).getId();
+            }
+            stringRedisTemplate.opsForValue().set(BLOG_BLOOM_READY_KEY, "1");
+            bloomReady = true;
+            log.info("笔记布隆过滤器加载完成 {} 篇", count);
+        } catch (Exception e) {
+            log.error("加载笔记布隆过滤器失败", e);
+        }
+    }
+
+    /**
+     * 批量填充作者信息、点赞数和当前用户的点赞状态，一页的往返次数与条数无关
+     * 1.作者: 一次MGET，未命中的一次IN查询
+     * 2.点赞数和点赞状态: 一次管道，HMGET redis中的点赞数、还未写入数据库的点赞数变化 + GETBIT
+     */
+    private void hydrate(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        Set<Long> authorIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toSet());
+        Map<Long, UserDTO> authors = cacheClient.queryBatchWithPassThrough(CACHE_USER_KEY, authorIds, UserDTO.class,
+                ids -> userService.listByIds(ids).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+        for (Blog blog : blogs) {
+            UserDTO author = authors.get(blog.getUserId());
+            if (author != null) {
+                blog.setName(author.getNickName()).setIcon(author.getIcon());
+            }
+        }
+        UserDTO user = UserHolder.getUser();
+        boolean legacy = !likesMigrated;
+        String[] blogIds = blogs.stream().map(blog -> blog.getId().toString()).toArray(String[]::new);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.hMGet(BLOG_LIKE_COUNT_KEY, blogIds);
+            conn.hMGet(BLOG_LIKE_DELTA_KEY, blogIds);
+            conn.hMGet(BLOG_LIKE_FLUSHING_KEY, blogIds);
+            if (user != null) {
+                queryLiked(conn, blogs, user.getId(), legacy);
+            }
+            return null;
+        });
+        List<String> counts = (List<String>) results.get(0);
+        List<String> deltas = (List<String>) results.get(1);
+        List<String> flushing = (List<String>) results.get(2);
+        for (int i = 0; i < blogs.size(); i++) {
+            Blog blog = blogs.get(i);
+            // 优先使用redis中的点赞数，未初始化时为 数据库中的点赞数 + 还未写入数据库的变化
+            Integer liked = Convert.toInt(counts.get(i), null);
+            if (liked == null) {
+                liked = Convert.toInt(blog.getLiked(), 0)
+                        + Convert.toInt(deltas.get(i), 0) + Convert.toInt(flushing.get(i), 0);
+            }
+            blog.setLiked(liked);
+        }
+        if (user != null) {
+            setLiked(blogs, results, 3, legacy);
+        }
+    }
+
+    /**
+     * 热门笔记
+     * 从最新的热门榜快照中按位置读取，快照还没有生成时按点赞数查询数据库
+     */
     @Override
     public Result queryHotBlog(Integer current) {
+        String version = stringRedisTemplate.opsForValue().get(BLOG_HOT_VERSION_KEY);
+        if (version != null) {
+            List<Blog> blogs = queryHotPage(version, (current - 1) * SystemConstants.MAX_PAGE_SIZE);
+            return Result.ok(blogs == null ? Collections.emptyList() : blogs);
+        }
         // 根据用户查询
         Page<Blog> page = blogService.query()
                 .orderByDesc("liked")
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询log有关用户
-        records.forEach(blog -> {
-            queryBlogUser(blog);
-            isBlogLiked(blog);
-        });
-        //查询blog是否被当前访问用户点赞
+        // 查询blog有关用户，以及是否被当前访问用户点赞
+        hydrate(records);
         return Result.ok(records);
     }
 
+    /**
+     * 热门笔记滚动分页，游标为 (快照版本, 位置)，翻页过程中榜单变化不会导致重复或遗漏
+     * 游标对应的快照已过期时从最新快照的同一位置继续
+     */
+    @Override
+    public Result queryHotBlogScroll(Long version, Integer offset) {
+        String current = version == null ? null : version.toString();
+        if (current == null || !BooleanUtil.isTrue(stringRedisTemplate.hasKey(BLOG_HOT_IDS_KEY + current))) {
+            current = stringRedisTemplate.opsForValue().get(BLOG_HOT_VERSION_KEY);
+        }
+        if (current == null) {
+            return Result.ok();
+        }
+        List<Blog> blogs = queryHotPage(current, offset);
+        if (blogs == null) {
+            return Result.ok();
+        }
+        ScrollResult res = new ScrollResult();
+        res.setList(blogs).setMinTime(Long.valueOf(current)).setOffset(offset + SystemConstants.MAX_PAGE_SIZE);
+        return Result.ok(res);
+    }
+
+    /**
+     * 读取快照中从offset开始的一页，预先填充好的页只需补充当前用户的点赞状态
+     * @return 超出快照范围时返回null
+     */
+    private List<Blog> queryHotPage(String version, int offset) {
+        int pageSize = SystemConstants.MAX_PAGE_SIZE;
+        if (offset % pageSize == 0 && offset / pageSize < hotPages) {
+            Object json = stringRedisTemplate.opsForHash().get(BLOG_HOT_PAGES_KEY + version, String.valueOf(offset / pageSize + 1));
+            if (json != null) {
+                try {
+                    List<Blog> blogs = objectMapper.readValue(json.toString(), new TypeReference<List<Blog>>() {});
+                    markLiked(blogs);
+                    return blogs;
+                } catch (JsonProcessingException e) {
+                    log.warn("热门笔记快照解析失败 version={}", version, e);
+                }
+            }
+        }
+        List<String> ids = stringRedisTemplate.opsForList().range(BLOG_HOT_IDS_KEY + version, offset, offset + pageSize - 1);
+        if (ids == null || ids.isEmpty()) {
+            return null;
+        }
+        List<Blog> blogs = queryBlogsInOrder(ids);
+        hydrate(blogs);
+        return blogs;
+    }
+
+    private List<Blog> queryBlogsInOrder(List<?> ids) {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        String idStr = StrUtil.join(",", ids);
+        return query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+    }
+
+    /**
+     * 只查询当前用户的点赞状态，一次管道GETBIT
+     */
+    private void markLiked(List<Blog> blogs) {
+        UserDTO user = UserHolder.getUser();
+        if (user == null || blogs.isEmpty()) {
+            return;
+        }
+        boolean legacy = !likesMigrated;
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            queryLiked((StringRedisConnection) connection, blogs, user.getId(), legacy);
+            return null;
+        });
+        setLiked(blogs, results, 0, legacy);
+    }
+
+    /**
+     * 在管道中查询用户是否点赞了每篇笔记，每篇一个GETBIT，迁移完成前再加一个旧集合的ZSCORE
+     */
+    private void queryLiked(StringRedisConnection conn, List<Blog> blogs, Long userId, boolean legacy) {
+        for (Blog blog : blogs) {
+            conn.getBit(likeBitmapKey(blog.getId(), userId), likeOffset(userId));
+            if (legacy) {
+                conn.zScore(BLOG_LIKED_KEY + blog.getId(), userId.toString());
+            }
+        }
+    }
+
+    /**
+     * 从管道结果的from位置开始读取 {@link #queryLiked} 的结果
+     */
+    private void setLiked(List<Blog> blogs, List<Object> results, int from, boolean legacy) {
+        int step = legacy ? 2 : 1;
+        for (int i = 0; i < blogs.size(); i++) {
+            int index = from + i * step;
+            boolean liked = BooleanUtil.isTrue((Boolean) results.get(index))
+                    || (legacy && results.get(index + 1) != null);
+            blogs.get(i).setIsLike(liked);
+        }
+    }
+
+    /**
+     * 用户所在的点赞位图分片 blog:like:bm:{blogId}:{userId / LIKE_SHARD_BITS}
+     */
+    private static String likeBitmapKey(Long blogId, Long userId) {
+        return BLOG_LIKE_BITMAP_KEY + blogId + ":" + userId / LIKE_SHARD_BITS;
+    }
+
+    /**
+     * 用户在位图分片中的位置
+     */
+    private static long likeOffset(Long userId) {
+        return userId % LIKE_SHARD_BITS;
+    }
+
+    /**
+     * 启动后先生成热门榜和快照
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void initHotBlogs() {
+        try {
+            rescoreHotBlogs();
+            refreshHotSnapshot();
+        } catch (Exception e) {
+            log.error("初始化热门笔记失败", e);
+        }
+    }
+
+    /**
+     * 重新计算统计范围内所有笔记的热度，按id分页读取，每页写入临时key，全部写完后RENAME替换
+     * 点赞时脚本按当时的发布时长增量更新，与重新计算的结果会有少量偏差，由本任务定期修正
+     */
+    @Scheduled(initialDelayString = "${hmdp.blog.hot.rescore-interval:600000}",
+            fixedDelayString = "${hmdp.blog.hot.rescore-interval:600000}")
+    public void rescoreHotBlogs() {
+        RLock lock = redissonClient.getLock(LOCK_BLOG_HOT_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        String suffix = ":rebuild:" + UUID.randomUUID().toString(true);
+        List<String> tmpKeys = Arrays.asList(BLOG_HOT_KEY + suffix, BLOG_HOT_TIME_KEY + suffix);
+        try {
+            LocalDateTime since = LocalDateTime.now().minusDays(hotWindowDays);
+            long now = System.currentTimeMillis();
+            long lastId = 0;
+            int count = 0;
+            while (true) {
+                List<Blog> blogs = query()
+                        .select("id", "liked", "create_time")
+                        .ge("create_time", since)
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("LIMIT 1000")
+                        .list();
+                if (!blogs.isEmpty()) {
+                    zAddHotScores(blogs, suffix, now);
+                    count += blogs.size();
+                }
+                if (blogs.size() < 1000) {
+                    break;
+                }
+                lastId = blogs.get(blogs.size() - 1).getId();
+            }
+            if (count == 0) {
+                stringRedisTemplate.delete(Arrays.asList(BLOG_HOT_KEY, BLOG_HOT_TIME_KEY));
+                return;
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                conn.rename(BLOG_HOT_KEY + suffix, BLOG_HOT_KEY);
+                conn.rename(BLOG_HOT_TIME_KEY + suffix, BLOG_HOT_TIME_KEY);
+                conn.zRemRange(BLOG_HOT_KEY, 0, -hotSize - 1);
+                return null;
+            });
+            log.debug("热门笔记重新计算完成 {} 篇", count);
+        } catch (RuntimeException e) {
+            // 中途失败时删除写了一半的临时key，榜单保持上一次的结果
+            stringRedisTemplate.delete(tmpKeys);
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 计算一页笔记的热度写入临时key，点赞数加上还未写入数据库的变化
+     */
+    private void zAddHotScores(List<Blog> blogs, String suffix, long now) {
+        List<Object> ids = new ArrayList<>(blogs.size());
+        for (Blog blog : blogs) {
+            ids.add(blog.getId().toString());
+        }
+        List<Object> deltas = stringRedisTemplate.opsForHash().multiGet(BLOG_LIKE_DELTA_KEY, ids);
+        List<Object> flushing = stringRedisTemplate.opsForHash().multiGet(BLOG_LIKE_FLUSHING_KEY, ids);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < blogs.size(); i++) {
+                Blog blog = blogs.get(i);
+                String id = blog.getId().toString();
+                long createTime = LocalDateTimeUtil.toEpochMilli(blog.getCreateTime());
+                int liked = Convert.toInt(blog.getLiked(), 0)
+                        + Convert.toInt(deltas.get(i), 0) + Convert.toInt(flushing.get(i), 0);
+                conn.zAdd(BLOG_HOT_KEY + suffix, hotScore(liked, now - createTime), id);
+                conn.zAdd(BLOG_HOT_TIME_KEY + suffix, createTime / 1000, id);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 生成热门榜快照: 榜单id列表 + 前几页填充好作者和点赞数的JSON，过期时间为3个周期
+     */
+    @Scheduled(initialDelayString = "${hmdp.blog.hot.snapshot-interval:60000}",
+            fixedDelayString = "${hmdp.blog.hot.snapshot-interval:60000}")
+    public void refreshHotSnapshot() {
+        RLock lock = redissonClient.getLock(LOCK_BLOG_HOT_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            Set<String> top = stringRedisTemplate.opsForZSet().reverseRange(BLOG_HOT_KEY, 0, hotSize - 1);
+            if (top == null || top.isEmpty()) {
+                return;
+            }
+            List<String> ids = new ArrayList<>(top);
+            int pageSize = SystemConstants.MAX_PAGE_SIZE;
+            int headSize = Math.min(ids.size(), hotPages * pageSize);
+            // 前几页查询并填充，已删除的笔记不进入快照
+            List<Blog> head = queryBlogsInOrder(ids.subList(0, headSize));
+            hydrate(head);
+            List<String> snapshotIds = new ArrayList<>(ids.size());
+            head.forEach(blog -> snapshotIds.add(blog.getId().toString()));
+            snapshotIds.addAll(ids.subList(headSize, ids.size()));
+            if (snapshotIds.isEmpty()) {
+                return;
+            }
+            Map<String, String> pages = new HashMap<>(hotPages * 2);
+            for (int from = 0, page = 1; from < head.size(); from += pageSize, page++) {
+                pages.put(String.valueOf(page),
+                        objectMapper.writeValueAsString(head.subList(from, Math.min(from + pageSize, head.size()))));
+            }
+            String version = String.valueOf(System.currentTimeMillis());
+            long ttl = hotSnapshotInterval * 3;
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                conn.rPush(BLOG_HOT_IDS_KEY + version, snapshotIds.toArray(new String[0]));
+                conn.pExpire(BLOG_HOT_IDS_KEY + version, ttl);
+                if (!pages.isEmpty()) {
+                    conn.hMSet(BLOG_HOT_PAGES_KEY + version, pages);
+                    conn.pExpire(BLOG_HOT_PAGES_KEY + version, ttl);
+                }
+                conn.pSetEx(BLOG_HOT_VERSION_KEY, ttl, version);
+                return null;
+            });
+        } catch (JsonProcessingException e) {
+            log.error("生成热门笔记快照失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 热度 = (点赞数 + 1) / (发布小时数 + 2) ^ gravity
+     */
+    private double hotScore(int liked, long ageMillis) {
+        double hours = Math.max(ageMillis, 0) / 3600000.0;
+        return (liked + 1) / Math.pow(hours + 2, hotGravity);
+    }
+
     @Override
     public Result likeBlog(Long id) {
         // 1.获取用户信息
         Long userId = UserHolder.getUser().getId();
-        String key = BLOG_LIKED_KEY + id;
-        // 2.判断当前登录用户是否已经点赞
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        // 3.如果未点赞，可以点赞
-        if(score == null) {
-            // 3.1数据库点赞数+1
-            boolean isSuccess = this.update().setSql("liked = liked + 1").eq("id", id).update();
-            // 3.2保存用户到redis的set集合中
-            if (isSuccess) {
-                stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+        // 2.笔记不存在时不点赞，避免为不存在的id创建位图、点赞数变化和热度；
+        //   通过笔记详情缓存判断，不存在的id由布隆过滤器和空值缓存拦截，不访问数据库
+        Blog blog = cacheClient.queryWithLogicalExpire(
+                CACHE_BLOG_KEY, id, Blog.class, this::loadBlog, CACHE_BLOG_TTL, TimeUnit.MINUTES);
+        if (blog == null) {
+            return Result.fail("笔记不存在");
+        }
+        // 3.执行lua脚本: 未点赞则点赞，已点赞则取消，点赞状态记录在位图中，同时维护最早点赞的用户
+        //   累加点赞数的变化，由定时任务批量写入数据库；点赞数变化同时计入热门榜的热度
+        stringRedisTemplate.execute(
+                LIKE_SCRIPT,
+                Arrays.asList(likeBitmapKey(id, userId), BLOG_LIKE_FIRST_KEY + id, BLOG_LIKED_KEY + id,
+                        BLOG_LIKE_DELTA_KEY, BLOG_HOT_KEY, BLOG_HOT_TIME_KEY, BLOG_LIKE_COUNT_KEY),
+                userId.toString(), String.valueOf(System.currentTimeMillis()), id.toString(), String.valueOf(hotGravity),
+                String.valueOf(likeOffset(userId)), String.valueOf(LIKE_FIRST_SIZE)
+        );
+        // 4.预读的关注流中点赞状态已经变化，删除已经预读的页，并增加版本号让正在进行的预读放弃写入
+        if (feedPrefetchEnabled) {
+            String versionKey = FEED_PREFETCH_VERSION_KEY + userId;
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                conn.incr(versionKey);
+                conn.expire(versionKey, feedPrefetchTtl);
+                conn.del(FEED_PREFETCH_KEY + userId);
+                return null;
+            });
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 把点赞数的变化批量写入数据库，数据库的写入频率与点赞频率无关
+     * 1.RENAMENX把累计的变化移到 flushing 中，之后的点赞写入新的 delta
+     * 2.flushing 一次 UPDATE ... CASE 写入数据库后删除；写库失败时 flushing 保留，下次先处理它
+     */
+    @Scheduled(fixedDelayString = "${hmdp.blog.like-flush-interval:5000}")
+    public void flushLikes() {
+        RLock lock = redissonClient.getLock(LOCK_BLOG_LIKE_FLUSH_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            if (!BooleanUtil.isTrue(stringRedisTemplate.hasKey(BLOG_LIKE_FLUSHING_KEY))) {
+                if (!BooleanUtil.isTrue(stringRedisTemplate.hasKey(BLOG_LIKE_DELTA_KEY))
+                        || !BooleanUtil.isTrue(stringRedisTemplate.renameIfAbsent(BLOG_LIKE_DELTA_KEY, BLOG_LIKE_FLUSHING_KEY))) {
+                    return;
+                }
             }
-        } else {
-            // 4.如果已点赞，取消点赞
-            // 4.1数据库点赞数-1
-            boolean isSuccess = this.update().setSql("liked = liked - 1").eq("id", id).update();
-            if (isSuccess) {
-                // 4.2移除数据库set集合中的用户信息
-                stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+            Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(BLOG_LIKE_FLUSHING_KEY);
+            Map<Long, Integer> deltas = new HashMap<>(entries.size() * 2);
+            entries.forEach((blogId, delta) -> {
+                int value = Convert.toInt(delta, 0);
+                if (value != 0) {
+                    deltas.put(Convert.toLong(blogId), value);
+                }
+            });
+            if (!deltas.isEmpty()) {
+                getBaseMapper().incrLikedBatch(deltas);
             }
+            stringRedisTemplate.delete(BLOG_LIKE_FLUSHING_KEY);
+            log.debug("点赞数写入数据库 {} 篇笔记", deltas.size());
+        } catch (Exception e) {
+            log.error("点赞数写入数据库失败", e);
+        } finally {
+            lock.unlock();
         }
-        return Result.ok();
+    }
+
+    /**
+     * 把旧的点赞用户集合 blog:liked:{id} 迁移到位图和最早点赞用户中
+     * 1.SCAN所有旧集合，每个集合按点赞时间从早到晚每次取一批，由lua脚本原子地写入位图并从旧集合中删除
+     * 2.迁移期间点赞、查询同时读取旧集合，结果不受影响；没有旧集合后标记迁移完成，之后不再读取旧集合
+     * 3.每次最多迁移 likeMigrateMaxBatches 批。迁移完的旧集合已被删除，下一次从头SCAN只会找到剩下的集合，不需要保存游标
+     */
+    @Scheduled(fixedDelayString = "${hmdp.blog.like-migrate-interval:60000}")
+    public void migrateLikes() {
+        if (likesMigrated) {
+            return;
+        }
+        if (BooleanUtil.isTrue(stringRedisTemplate.hasKey(BLOG_LIKE_MIGRATED_KEY))) {
+            likesMigrated = true;
+            return;
+        }
+        RLock lock = redissonClient.getLock(LOCK_BLOG_LIKE_MIGRATE_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        ScanOptions options = ScanOptions.scanOptions().match(BLOG_LIKED_KEY + "*").count(LIKE_MIGRATE_BATCH).build();
+        int count = 0;
+        int batches = 0;
+        try (Cursor<byte[]> cursor = stringRedisTemplate.executeWithStickyConnection(
+                (RedisCallback<Cursor<byte[]>>) connection -> connection.scan(options))) {
+            while (batches < likeMigrateMaxBatches && cursor.hasNext()) {
+                batches += migrateLikes(new String(cursor.next(), StandardCharsets.UTF_8), likeMigrateMaxBatches - batches);
+                count++;
+            }
+            // 完整扫描一遍都没有旧集合才算迁移完成
+            if (count == 0) {
+                stringRedisTemplate.opsForValue().set(BLOG_LIKE_MIGRATED_KEY, "1");
+                likesMigrated = true;
+                log.info("点赞记录迁移完成");
+            } else {
+                log.info("迁移 {} 篇笔记的点赞记录，共 {} 批", count, batches);
+            }
+        } catch (Exception e) {
+            log.error("迁移点赞记录失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 迁移一篇笔记的旧点赞集合，最多迁移 maxBatches 批，没迁移完的留在旧集合中
+     * @return 实际执行的批数
+     */
+    private int migrateLikes(String key, int maxBatches) {
+        Long blogId = Long.valueOf(key.substring(BLOG_LIKED_KEY.length()));
+        int batches = 0;
+        while (batches < maxBatches) {
+            Set<String> members = stringRedisTemplate.opsForZSet().range(key, 0, LIKE_MIGRATE_BATCH - 1);
+            if (members == null || members.isEmpty()) {
+                break;
+            }
+            List<String> keys = new ArrayList<>(members.size() + 2);
+            keys.add(key);
+            keys.add(BLOG_LIKE_FIRST_KEY + blogId);
+            List<String> args = new ArrayList<>(members.size() * 2 + 1);
+            args.add(String.valueOf(LIKE_FIRST_SIZE));
+            for (String member : members) {
+                Long userId = Long.valueOf(member);
+                keys.add(likeBitmapKey(blogId, userId));
+                args.add(member);
+                args.add(String.valueOf(likeOffset(userId)));
+            }
+            stringRedisTemplate.execute(LIKE_MIGRATE_SCRIPT, keys, args.toArray());
+            batches++;
+        }
+        return batches;
     }
 
     @Override
     public Result likesBlog(Long id) {
-        //查询top5的点赞数 zrange key 0 4
-        String key = BLOG_LIKED_KEY + id;
-        Set<String> top5 = stringRedisTemplate.opsForZSet().range(key, 0, 4);
-        if (top5 == null) {
+        //查询最早点赞的5个用户 zrange key 0 4
+        String key = BLOG_LIKE_FIRST_KEY + id;
+        Set<String> top5;
+        if (likesMigrated) {
+            top5 = stringRedisTemplate.opsForZSet().range(key, 0, 4);
+            //取消点赞后不足5人，从位图中补充
+            if (top5 != null && top5.size() < 5 && refillFirstLikers(id, top5)) {
+                top5 = stringRedisTemplate.opsForZSet().range(key, 0, 4);
+            }
+        } else {
+            //迁移完成前旧集合中可能有更早的点赞用户，按点赞时间合并
+            Set<ZSetOperations.TypedTuple<String>> first = stringRedisTemplate.opsForZSet().rangeWithScores(key, 0, 4);
+            Set<ZSetOperations.TypedTuple<String>> legacy = stringRedisTemplate.opsForZSet().rangeWithScores(BLOG_LIKED_KEY + id, 0, 4);
+            top5 = Stream.of(first, legacy)
+                    .filter(Objects::nonNull)
+                    .flatMap(Set::stream)
+                    .sorted(Comparator.comparing(ZSetOperations.TypedTuple::getScore))
+                    .map(ZSetOperations.TypedTuple::getValue)
+                    .distinct()
+                    .limit(5)
+                    .collect(Collectors.toCollection(LinkedHashSet::new));
+        }
+        if (top5 == null || top5.isEmpty()) {
             return Result.ok(Collections.emptyList());
         }
         //解析出其中的用户id
@@ -148,85 +923,281 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
         return Result.ok(userDTOS);
     }
-    private static final ExecutorService FEED_EXECUTOR = Executors.newSingleThreadExecutor();
+    /**
+     * 从点赞位图中补充最早点赞用户，补充到 LIKE_FIRST_SIZE 人
+     * 1.点赞数不多于现有人数时没有可补充的用户；每篇笔记 BLOG_LIKE_REFILL_TTL 秒内最多补充一次，避免反复读取位图
+     * 2.按最大的用户id计算分片数，一次管道读取全部分片；位图中没有点赞时间，按用户id从小到大补充，排在现有用户之后
+     * @param present 现有的全部最早点赞用户
+     * @return 是否补充了用户
+     */
+    private boolean refillFirstLikers(Long blogId, Set<String> present) {
+        Integer liked = Convert.toInt(stringRedisTemplate.opsForHash().get(BLOG_LIKE_COUNT_KEY, blogId.toString()), null);
+        if (liked != null && liked <= present.size()) {
+            return false;
+        }
+        Boolean first = stringRedisTemplate.opsForValue()
+                .setIfAbsent(BLOG_LIKE_REFILL_KEY + blogId, "1", BLOG_LIKE_REFILL_TTL, TimeUnit.SECONDS);
+        if (!BooleanUtil.isTrue(first)) {
+            return false;
+        }
+        try {
+            User last = userService.query().select("id").orderByDesc("id").last("LIMIT 1").one();
+            if (last == null) {
+                return false;
+            }
+            long shards = last.getId() / LIKE_SHARD_BITS + 1;
+            // 不指定序列化器，分片按原始字节返回
+            List<Object> bitmaps = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (long shard = 0; shard < shards; shard++) {
+                    connection.get(likeBitmapKey(blogId, shard * LIKE_SHARD_BITS).getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            }, null);
+            int need = LIKE_FIRST_SIZE - present.size();
+            List<String> keys = new ArrayList<>(need + 1);
+            keys.add(BLOG_LIKE_FIRST_KEY + blogId);
+            List<String> args = new ArrayList<>(need * 2 + 2);
+            args.add(String.valueOf(LIKE_FIRST_SIZE));
+            args.add(String.valueOf(System.currentTimeMillis()));
+            for (int shard = 0; shard < bitmaps.size() && keys.size() <= need; shard++) {
+                byte[] bits = (byte[]) bitmaps.get(shard);
+                if (bits == null) {
+                    continue;
+                }
+                // redis位图中第0位是第一个字节的最高位
+                for (int offset = 0; offset < bits.length * 8 && keys.size() <= need; offset++) {
+                    if ((bits[offset >> 3] & (0x80 >>> (offset & 7))) == 0) {
+                        continue;
+                    }
+                    long userId = shard * LIKE_SHARD_BITS + offset;
+                    String member = String.valueOf(userId);
+                    if (present.contains(member)) {
+                        continue;
+                    }
+                    keys.add(likeBitmapKey(blogId, userId));
+                    args.add(member);
+                    args.add(String.valueOf(offset));
+                }
+            }
+            if (keys.size() == 1) {
+                return false;
+            }
+            Long added = stringRedisTemplate.execute(LIKE_REFILL_SCRIPT, keys, args.toArray());
+            return added != null && added > 0;
+        } catch (Exception e) {
+            log.error("补充最早点赞用户失败, blogId={}", blogId, e);
+            return false;
+        }
+    }
+
     @Override
     public Result saveBlog(Blog blog) {
         //1. 获取登录用户
         UserDTO user = UserHolder.getUser();
         blog.setUserId(user.getId());
-        //2. 保存探店博文
+        //2. 保存探店博文，创建时间取整到秒并作为收件箱中的时间戳，收件箱被裁剪后可以按创建时间从数据库继续翻页
+        LocalDateTime createTime = LocalDateTime.now().withNano(0);
+        blog.setCreateTime(createTime);
         boolean isSuccess = blogService.save(blog);
         if (!isSuccess) {
             return Result.fail("新增笔记失败");
         }
-        //3. 查询当前笔记所有者的fans id
-        List<Follow> list = followService.query().select("user_id").eq("follow_user_id", user.getId()).list();
-        //异步推送
-        CompletableFuture.runAsync(() -> {
-            //4. 推送笔记
-            for (Follow follow : list) {
-                //4.1获取粉丝id
-                Long userId = follow.getUserId();
-                //4.2推送
-                String key = FEED_KEY + userId;
-                stringRedisTemplate.opsForZSet().add(key, blog.getId().toString(), System.currentTimeMillis());
-            }
-        }, FEED_EXECUTOR).whenComplete((v, e) -> {
-            if (e == null) {
-                log.info("推送完成");
-            }
-            log.error("推送失败");
+        // 加入布隆过滤器，并清除保存前可能被缓存的空值
+        if (bloomEnabled) {
+            blogBloomFilter.add(blog.getId());
+        }
+        cacheClient.delete(CACHE_BLOG_KEY + blog.getId());
+        //3. 写入作者的发件箱，收件箱和发件箱使用同一个时间戳，作者成为大V后合并时可以去重
+        //   同时加入热门榜，新笔记的初始热度为 1 / 2 ^ gravity
+        long time = LocalDateTimeUtil.toEpochMilli(createTime);
+        String blogId = blog.getId().toString();
+        String outboxKey = FEED_OUTBOX_KEY + user.getId();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.zAdd(outboxKey, time, blogId);
+            conn.zRemRange(outboxKey, 0, -feedCapacity - 1);
+            conn.zAdd(BLOG_HOT_KEY, hotScore(0, 0), blogId);
+            conn.zAdd(BLOG_HOT_TIME_KEY, time / 1000, blogId);
+            return null;
         });
+        //4. 大V不推送，粉丝读取时从发件箱拉取
+        if (isBigAuthor(user.getId())) {
+            return Result.ok(blog.getId());
+        }
+        //5. 异步分片推送到粉丝收件箱，进度保存在redis中
+        feedFanout.submit(blog.getId(), user.getId(), time);
         // 返回id
         return Result.ok(blog.getId());
     }
 
+    /**
+     * 判断作者是否为大V，一旦成为大V不再退回推模式，避免只写了发件箱的笔记在粉丝收件箱中缺失
+     */
+    private boolean isBigAuthor(Long authorId) {
+        String member = authorId.toString();
+        if (BooleanUtil.isTrue(stringRedisTemplate.opsForSet().isMember(FEED_BIG_AUTHOR_KEY, member))) {
+            return true;
+        }
+        Integer fans = followService.query().eq("follow_user_id", authorId).count();
+        if (fans < bigAuthorThreshold) {
+            return false;
+        }
+        stringRedisTemplate.opsForSet().add(FEED_BIG_AUTHOR_KEY, member);
+        return true;
+    }
+
+    /**
+     * 关注流滚动分页
+     * 返回一页后异步查询并填充下一页，保存在用户的预读缓存 feed:prefetch:{userId} 中，
+     * 下一次请求的游标与预读的游标相同时直接返回，不再查询收件箱和数据库
+     */
     @Override
     public Result queryBlogOfFollow(Long max, Integer offset) {
         // 1.获取当前用户
-        Long userId = UserHolder.getUser().getId();
-        // 2.查询收件箱 ZREVRANGEBYSCORE key Max Min LIMIT offset count
-        String key = FEED_KEY + userId;
-        Set<ZSetOperations.TypedTuple<String>> typedTuples = stringRedisTemplate.opsForZSet().reverseRangeByScoreWithScores(key, 0, max, offset, 2);
-        if (typedTuples == null || typedTuples.isEmpty()) {
-            return Result.ok();
+        UserDTO user = UserHolder.getUser();
+        ScrollResult res = null;
+        // 2.上一页已经预读了这一页
+        String cursor = max + ":" + offset;
+        String key = FEED_PREFETCH_KEY + user.getId();
+        List<Object> prefetched = feedPrefetchEnabled
+                ? stringRedisTemplate.opsForHash().multiGet(key, Arrays.asList("cursor", "page"))
+                : Collections.emptyList();
+        if (!prefetched.isEmpty() && cursor.equals(prefetched.get(0)) && prefetched.get(1) != null) {
+            String json = prefetched.get(1).toString();
+            if (json.isEmpty()) {
+                return Result.ok();
+            }
+            try {
+                res = objectMapper.readValue(json, ScrollResult.class);
+            } catch (JsonProcessingException e) {
+                log.warn("预读的关注流解析失败 userId={}", user.getId(), e);
+            }
         }
-        // 3.解析收件箱 blogId score->minTime, offset
-        List<Long> ids = new ArrayList<>(typedTuples.size());
-        long minTime = 0;
-        int count = 1;
-        for (ZSetOperations.TypedTuple<String> tuple : typedTuples) {
-            //获取blogId
-            ids.add(Long.parseLong(tuple.getValue()));
-            //获取时间戳
-            long time = tuple.getScore().longValue();
-            //找到最小时间戳 并记录最小时间戳的个数
-            if (minTime == time) {
-                count++;
-            } else {
-                minTime = time;
-                count  = 1;
+        // 3.没有预读，查询当前页
+        if (res == null) {
+            res = queryFeedPage(user.getId(), max, offset);
+            if (res == null) {
+                return Result.ok();
             }
         }
-        // 4.根据blogId查询blog封装并返回
-        String idStr = StrUtil.join(",", ids);
-        List<Blog> blogs = this.query()
-                .in("id", ids).last("order by FIElD(id," + idStr + ")")
-                .list();
-        for (Blog blog : blogs) {
-            queryBlogUser(blog);
-            isBlogLiked(blog);
+        // 4.预读下一页
+        prefetchFeed(user, res);
+        return Result.ok(res);
+    }
+
+    /**
+     * 异步查询下一页并写入预读缓存，不足一页说明已经没有下一页
+     * 开始前记录点赞版本号，写入时版本号变化说明预读期间点赞状态变了，放弃写入
+     */
+    private void prefetchFeed(UserDTO user, ScrollResult page) {
+        if (!feedPrefetchEnabled || page.getList().size() < feedPageSize) {
+            return;
+        }
+        long max = page.getMinTime();
+        int offset = page.getOffset();
+        String cursor = max + ":" + offset;
+        String key = FEED_PREFETCH_KEY + user.getId();
+        feedPrefetchExecutor.execute(() -> {
+            // 填充点赞状态需要当前用户
+            UserHolder.saveUser(user);
+            try {
+                if (cursor.equals(stringRedisTemplate.opsForHash().get(key, "cursor"))) {
+                    return;
+                }
+                String versionKey = FEED_PREFETCH_VERSION_KEY + user.getId();
+                String version = stringRedisTemplate.opsForValue().get(versionKey);
+                ScrollResult next = queryFeedPage(user.getId(), max, offset);
+                stringRedisTemplate.execute(FEED_PREFETCH_SCRIPT, Arrays.asList(key, versionKey),
+                        version == null ? "" : version, cursor,
+                        next == null ? "" : objectMapper.writeValueAsString(next), String.valueOf(feedPrefetchTtl));
+            } catch (Exception e) {
+                log.warn("预读关注流失败 userId={}", user.getId(), e);
+            } finally {
+                UserHolder.removeUser();
+            }
+        });
+    }
+
+    /**
+     * 查询一页关注流
+     * @return 没有数据时返回null
+     */
+    private ScrollResult queryFeedPage(Long userId, long max, int offset) {
+        // 1.收件箱 + 关注的大V的发件箱
+        List<String> keys = new ArrayList<>();
+        keys.add(FEED_KEY + userId);
+        Set<String> bigAuthors = stringRedisTemplate.opsForSet().intersect(FOLLOWS_KEY + userId, FEED_BIG_AUTHOR_KEY);
+        if (bigAuthors != null) {
+            bigAuthors.forEach(authorId -> keys.add(FEED_OUTBOX_KEY + authorId));
+        }
+        // 2.每一路读取 offset + size 条 ZREVRANGEBYSCORE key Max Min LIMIT 0 count，以及条数和最早的一条，一次管道发送
+        long count = offset + feedPageSize;
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String key : keys) {
+                conn.zRevRangeByScoreWithScores(key, 0, max, 0, count);
+                conn.zCard(key);
+                conn.zRangeWithScores(key, 0, 0);
+            }
+            return null;
+        });
+        List<Set<ZSetOperations.TypedTuple<String>>> sources = new ArrayList<>(keys.size());
+        // 达到容量的收件箱/发件箱可能被裁剪过，只有时间戳大于其中最早一条的部分是完整的
+        double floor = 0;
+        for (int i = 0; i < results.size(); i += 3) {
+            sources.add((Set<ZSetOperations.TypedTuple<String>>) results.get(i));
+            Long size = (Long) results.get(i + 1);
+            Set<ZSetOperations.TypedTuple<String>> oldest = (Set<ZSetOperations.TypedTuple<String>>) results.get(i + 2);
+            if (size != null && size >= feedCapacity && oldest != null && !oldest.isEmpty()) {
+                floor = Math.max(floor, oldest.iterator().next().getScore());
+            }
         }
+        // 3.多路合并 blogId score->minTime, offset
+        FeedMerger.FeedPage feedPage = FeedMerger.merge(sources, max, offset, feedPageSize);
+        // 翻到了被裁剪的部分，改为从数据库查询
+        if (floor > 0 && (feedPage.getIds().size() < feedPageSize || feedPage.getMinTime() <= floor)) {
+            feedPage = queryFeedFromDb(userId, max, offset);
+        }
+        List<Long> ids = feedPage.getIds();
+        if (ids.isEmpty()) {
+            return null;
+        }
+        // 4.根据blogId查询blog封装并返回
+        List<Blog> blogs = queryBlogsInOrder(ids);
+        hydrate(blogs);
         //封装返回结果
         ScrollResult res = new ScrollResult();
-        res.setList(blogs).setOffset(count).setMinTime(minTime);
-        return Result.ok(res);
+        res.setList(blogs).setOffset(feedPage.getOffset()).setMinTime(feedPage.getMinTime());
+        return res;
     }
 
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName()).setIcon(user.getIcon());
+    /**
+     * 从数据库查询关注的作者发布的笔记
+     * 笔记的创建时间与收件箱中的时间戳相同，合并规则也相同，游标可以在收件箱和数据库之间直接沿用
+     * 创建时间相同的按id的字符串倒序，与redis的member字典序一致，LIMIT截取的才是合并后的前 offset+size 条
+     */
+    private FeedMerger.FeedPage queryFeedFromDb(Long userId, long max, int offset) {
+        List<Long> authorIds = followService.query()
+                .select("follow_user_id").eq("user_id", userId)
+                .list()
+                .stream()
+                .map(Follow::getFollowUserId)
+                .collect(Collectors.toList());
+        Set<ZSetOperations.TypedTuple<String>> tuples = new LinkedHashSet<>();
+        if (!authorIds.isEmpty()) {
+            List<Blog> blogs = query()
+                    .select("id", "create_time")
+                    .in("user_id", authorIds)
+                    .le("create_time", LocalDateTimeUtil.of(max))
+                    .orderByDesc("create_time", "CAST(id AS CHAR)")
+                    .last("LIMIT " + (offset + feedPageSize))
+                    .list();
+            for (Blog blog : blogs) {
+                tuples.add(new DefaultTypedTuple<>(blog.getId().toString(),
+                        (double) LocalDateTimeUtil.toEpochMilli(blog.getCreateTime())));
+            }
+        }
+        return FeedMerger.merge(Collections.singletonList(tuples), max, offset, feedPageSize);
     }
 
 }
@@ -21,6 +21,8 @@ import java.util.Set;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.FOLLOWS_KEY;
+
 /**
  * <p>
  *  服务实现类
@@ -43,7 +45,7 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
         //1.获取登录用户
         Long userId = UserHolder.getUser().getId();
 
-        String key = "follows:" + userId;
+        String key = FOLLOWS_KEY + userId;
         //2.判断是关注还是取关
         if (isFollow) {
             //关注
@@ -79,9 +81,9 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
     public Result followCommons(Long id) {
         //1. 获取当前登录用户
         Long userId = UserHolder.getUser().getId();
-        String key = "follows:" + userId;
+        String key = FOLLOWS_KEY + userId;
         //2. 获取目标用户
-        String key2 = "follows:" + id;
+        String key2 = FOLLOWS_KEY + id;
 
         Set<String> intersect = stringRedisTemplate.opsForSet().intersect(key, key2);
         //3，解析id
@@ -1,28 +1,54 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopFilter;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheWarmer;
+import com.hmdp.utils.GeoGrid;
+import com.hmdp.utils.ShopColumns;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopNameIndex;
 import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.redisson.api.RTopic;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
 import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 import java.time.LocalDateTime;
 import java.util.*;
@@ -41,18 +67,121 @@ import static com.hmdp.utils.RedisConstants.*;
  * @author kaka
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
+    /**
+     * 全量重建GEO时每批写入redis的店铺数
+     */
+    private static final int GEO_LOAD_BATCH = 1000;
+
+    /**
+     * 内存地理和属性索引需要的字段
+     */
+    private static final String[] INDEX_COLUMNS =
+            {"id", "name", "area", "x", "y", "type_id", "avg_price", "score", "sold", "open_hours"};
+
+    /**
+     * 游标缓存的坐标取整精度，0.00001度约1m
+     */
+    private static final double GEO_POINT_SCALE = 100000;
+
+    /**
+     * 本节点的标识，忽略自己发出的索引变更通知
+     */
+    private static final String NODE_ID = UUID.randomUUID().toString(true);
+
+    /**
+     * 全量重建的通知内容，其他节点收到后重新加载对应的内存索引
+     */
+    private static final String GEO_REBUILT = "geo";
+    private static final String NAME_REBUILT = "name";
+
+    /**
+     * 处理其他节点的索引变更通知，不占用redisson的线程
+     */
+    private static final ExecutorService SHOP_INDEX_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "shop-index-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     @Resource
     StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheWarmer cacheWarmer;
+
+    @Resource
+    private ObjectMapper objectMapper;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @Resource
+    private ShopNameIndex shopNameIndex;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    /**
+     * 附近店铺的最大搜索半径(m)，超过时按最大值查询
+     */
+    @Value("${hmdp.shop.max-radius:50000}")
+    private double maxRadius;
+
+    /**
+     * 附近店铺按页码翻页的最大页数，更深的页返回空，需要继续翻页时使用游标
+     */
+    @Value("${hmdp.shop.max-page:50}")
+    private int maxPage;
 
+    /**
+     * 店铺变更通知，消息为 节点标识:店铺id，每个节点收到后重新读取店铺并更新自己的内存索引；
+     * 全量重建后发送 节点标识:geo 或 节点标识:name，每个节点各自全量重新加载
+     */
+    private RTopic shopIndexTopic;
+
+    /**
+     * 本类的代理对象，收到名称索引重建通知时在只读事务中读取游标
+     */
+    private ShopServiceImpl proxy;
+
+    @PostConstruct
+    private void init() {
+        //注册店铺缓存预热 并写入本地快照
+        cacheWarmer.register(CacheWarmer.SHOP, CACHE_SHOP_KEY, this::warmUpCache, this::queryUpdateTimes);
+        //订阅其他节点的店铺变更，更新本节点的内存索引
+        shopIndexTopic = redissonClient.getTopic(SHOP_INDEX_TOPIC, StringCodec.INSTANCE);
+        shopIndexTopic.addListener(String.class, (channel, message) -> onShopIndexChanged(message));
+        //加载内存地理索引
+        loadGeoIndex();
+    }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    /**
+     * 从数据库全量加载店铺地理和属性索引，失败时附近店铺查询继续使用redis GEO
+     */
+    public void loadGeoIndex() {
+        if (!shopGeoIndex.isEnabled()) {
+            return;
+        }
+        try {
+            List<Shop> shops = query().select(INDEX_COLUMNS)
+                    .isNotNull("x").isNotNull("y").list();
+            shopGeoIndex.load(shops);
+        } catch (Exception e) {
+            log.error("加载店铺地理索引失败", e);
+        }
+    }
 
     @Override
     public Result queryById(Long id) {
+        //记录访问 用于缓存预热
+        cacheWarmer.recordAccess(CacheWarmer.SHOP, id);
         //缓存穿透
 //        return queryWithPassThrough(id);
         //互斥锁解决缓存击穿
@@ -67,47 +196,35 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
+    /**
+     * 查询店铺，直接返回序列化好的响应体
+     * 缓存未过期时把缓存中的json原样拼进响应，不做反序列化和再序列化
+     */
+    @Override
+    public byte[] queryJsonById(Long id) {
+        //记录访问 用于缓存预热
+        cacheWarmer.recordAccess(CacheWarmer.SHOP, id);
+        String json = cacheClient.queryPayloadWithLogicalExpire(
+                CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        if (json == null) {
+            try {
+                return objectMapper.writeValueAsBytes(Result.fail("店铺不存在"));
+            } catch (JsonProcessingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return Result.okJson(json);
+    }
+
     /**
      * 逻辑过期时间解决缓存击穿
      * @param id
      * @return
      */
     private Shop queryWithLogicExpire(Long id) {
-        String key = CACHE_SHOP_KEY + id;
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-
-        if (StrUtil.isBlank(shopJson)) {
-            //缓存未命中返回空
-            return this.getById(id);
-        }
-        //缓存命中， json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        Shop shop = JSONUtil.toBean(data, Shop.class);
-        //查看过期时间
-        LocalDateTime expireTime = redisData.getExpireTime();
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            //未过期，返回商铺信息
-            return shop;
-        }
-        //过期 需要缓存重建
-        //缓存重建
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        //尝试获取互斥锁
-        if (isLock) {
-            //获取锁成功 开启独立线程 实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    this.saveShop2Redis(id, 30L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    delLock(lockKey);
-                }
-            });
-        }
-        return shop;
+        //缓存未命中时查询数据库并异步回填缓存
+        return cacheClient.queryWithLogicalExpire(
+                CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     /**
@@ -205,12 +322,46 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      */
     public void saveShop2Redis(Long id, Long expireTime) {
         Shop shop = this.getById(id);
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireTime));
+        //将带有逻辑过期时间的数据写入redis 过期时间带随机抖动
+        cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY + id, shop, expireTime, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 批量预热店铺缓存
+     * @param ids 店铺id
+     */
+    public void warmUpCache(List<Long> ids) {
+        List<Shop> shops = this.listByIds(ids);
+        Map<String, Shop> values = new HashMap<>(shops.size());
+        for (Shop shop : shops) {
+            values.put(CACHE_SHOP_KEY + shop.getId(), shop);
+        }
+        cacheClient.setWithLogicalExpireBatch(values, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 批量查询店铺的更新时间，用于校验缓存快照
+     * @param ids 店铺id
+     * @return id -> updateTime
+     */
+    public Map<Long, LocalDateTime> queryUpdateTimes(Collection<Long> ids) {
+        List<Shop> shops = query().select("id", "update_time").in("id", ids).list();
+        Map<Long, LocalDateTime> updateTimes = new HashMap<>(shops.size());
+        for (Shop shop : shops) {
+            updateTimes.put(shop.getId(), shop.getUpdateTime());
+        }
+        return updateTimes;
+    }
 
-        //将带有逻辑过期时间的数据写入redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+    @Transactional
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        // 事务提交后加入地理索引
+        runAfterCommit("同步新增店铺索引", shop.getId(), () -> syncShopIndexes(shop.getId(), null));
+        // 返回店铺id
+        return Result.ok(shop.getId());
     }
 
     @Transactional
@@ -220,15 +371,323 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if (id == null) {
             return Result.fail("店铺不存在");
         }
+        //类型变化时记录原类型，用于从原类型的GEO中移除
+        Long oldTypeId = null;
+        if (shop.getTypeId() != null) {
+            Shop old = query().select("type_id").eq("id", id).one();
+            oldTypeId = old == null ? null : old.getTypeId();
+        }
+        Long finalOldTypeId = oldTypeId;
         //更新数据库
         updateById(shop);
-        //删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        //事务提交后重建缓存，保证重建时读到的是新数据；刷新失败时删除缓存，由下一次查询回填
+        runAfterCommit("刷新店铺缓存", id, () -> {
+            try {
+                cacheClient.refreshLogicalExpire(
+                        CACHE_SHOP_KEY, id, ShopServiceImpl.this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            } catch (RuntimeException e) {
+                cacheClient.delete(CACHE_SHOP_KEY + id);
+                throw e;
+            }
+        });
+        runAfterCommit("同步修改店铺索引", id, () -> syncShopIndexes(id, finalOldTypeId));
         return Result.ok();
     }
 
+    @Transactional
     @Override
-    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y) {
+    public Result deleteShop(Long id) {
+        Shop old = query().select("type_id").eq("id", id).one();
+        if (old == null) {
+            return Result.fail("店铺不存在");
+        }
+        removeById(id);
+        //事务提交后清除缓存和GEO
+        runAfterCommit("删除店铺缓存", id, () -> cacheClient.delete(CACHE_SHOP_KEY + id));
+        runAfterCommit("同步删除店铺索引", id, () -> syncShopIndexes(id, old.getTypeId()));
+        return Result.ok();
+    }
+
+    /**
+     * 事务提交后执行，异常只记录日志：数据库已经提交，异常抛给调用方会让成功的操作看起来失败了
+     */
+    private void runAfterCommit(String action, Long id, Runnable task) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error("{}失败 id={}", action, id, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 从数据库读取店铺最新的位置、类型、名称和属性，同步到redis GEO和内存索引
+     * 内存索引每个节点一份，本节点直接更新后发布变更通知，其他节点收到后各自更新
+     * @param oldTypeId 修改前的类型，类型变化或店铺被删除时从原类型的GEO中移除，新增店铺传null
+     */
+    private void syncShopIndexes(Long id, Long oldTypeId) {
+        Shop shop = query().select(INDEX_COLUMNS).eq("id", id).one();
+        boolean located = shop != null && shop.getX() != null && shop.getY() != null;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            if (oldTypeId != null && (!located || !oldTypeId.equals(shop.getTypeId()))) {
+                conn.zRem(SHOP_GEO_KEY + oldTypeId, id.toString());
+            }
+            if (located) {
+                conn.geoAdd(SHOP_GEO_KEY + shop.getTypeId(), new Point(shop.getX(), shop.getY()), id.toString());
+            }
+            return null;
+        });
+        applyLocalIndexes(id, shop);
+        shopIndexTopic.publish(NODE_ID + ":" + id);
+    }
+
+    /**
+     * 其他节点修改了店铺，重新读取后更新本节点的内存索引；其他节点全量重建后，本节点重新加载
+     */
+    private void onShopIndexChanged(String message) {
+        int i = message.indexOf(':');
+        if (i < 0 || NODE_ID.equals(message.substring(0, i))) {
+            return;
+        }
+        String body = message.substring(i + 1);
+        if (GEO_REBUILT.equals(body)) {
+            SHOP_INDEX_EXECUTOR.execute(this::loadGeoIndex);
+            return;
+        }
+        if (NAME_REBUILT.equals(body)) {
+            SHOP_INDEX_EXECUTOR.execute(() -> {
+                // 启动时的名称索引还没有构建，构建时会读到最新的数据
+                if (proxy != null) {
+                    proxy.loadNameIndex();
+                }
+            });
+            return;
+        }
+        Long id;
+        try {
+            id = Long.valueOf(body);
+        } catch (NumberFormatException e) {
+            log.warn("店铺索引变更通知格式不正确 {}", message);
+            return;
+        }
+        SHOP_INDEX_EXECUTOR.execute(() -> {
+            try {
+                applyLocalIndexes(id, query().select(INDEX_COLUMNS).eq("id", id).one());
+            } catch (Exception e) {
+                log.error("同步店铺内存索引失败 id={}", id, e);
+            }
+        });
+    }
+
+    /**
+     * 更新本节点的名称索引和地理索引
+     * @param shop 最新的店铺，已删除时为null
+     */
+    private void applyLocalIndexes(Long id, Shop shop) {
+        if (shop != null) {
+            shopNameIndex.put(shop);
+        } else {
+            shopNameIndex.remove(id);
+        }
+        if (!shopGeoIndex.isReady()) {
+            return;
+        }
+        if (shop != null && shop.getX() != null && shop.getY() != null) {
+            shopGeoIndex.put(shop);
+        } else {
+            shopGeoIndex.remove(id);
+        }
+    }
+
+    /**
+     * 启动完成后构建名称索引，ApplicationReadyEvent的监听器执行完之后应用才会被判定为就绪
+     * 通过代理调用，游标在只读事务中遍历
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Transactional(readOnly = true)
+    public void loadNameIndex() {
+        if (proxy == null) {
+            proxy = (ShopServiceImpl) AopContext.currentProxy();
+        }
+        if (!shopNameIndex.isEnabled()) {
+            return;
+        }
+        try {
+            buildNameIndex();
+        } catch (Exception e) {
+            log.error("构建店铺名称索引失败", e);
+        }
+    }
+
+    /**
+     * 全量重建本节点的名称索引，并通知其他节点各自重建
+     */
+    @Transactional(readOnly = true)
+    @Override
+    public Result rebuildNameIndex() {
+        int count = buildNameIndex();
+        shopIndexTopic.publish(NODE_ID + ":" + NAME_REBUILT);
+        return Result.ok(count);
+    }
+
+    /**
+     * 用游标流式读取tb_shop，全量重建名称索引，需要在事务中调用
+     * @return 索引的店铺数
+     */
+    private int buildNameIndex() {
+        ShopNameIndex.Builder builder = shopNameIndex.builder();
+        int count = 0;
+        try (Cursor<Shop> cursor = getBaseMapper().scanNames()) {
+            for (Shop shop : cursor) {
+                builder.add(shop);
+                count++;
+            }
+        } catch (IOException | RuntimeException e) {
+            builder.abort();
+            throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+        }
+        builder.commit();
+        return count;
+    }
+
+    @Override
+    public Result queryShopByName(String name, Integer current) {
+        // 页码从1开始
+        current = current == null || current < 1 ? 1 : current;
+        // 没有关键字或名称索引不可用时查询数据库
+        if (StrUtil.isBlank(name) || !shopNameIndex.isReady()) {
+            Page<Shop> page = query()
+                    .like(StrUtil.isNotBlank(name), "name", name)
+                    .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
+            return Result.ok(page.getRecords());
+        }
+        // 页码很大时避免溢出成负数
+        int skip = (int) Math.min(Integer.MAX_VALUE, (current - 1L) * SystemConstants.MAX_PAGE_SIZE);
+        List<Long> ids = shopNameIndex.search(name, skip, SystemConstants.MAX_PAGE_SIZE);
+        if (ids.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        // 根据id查询数据库 保证查出来的结果有序
+        String idStr = StrUtil.join(",", ids);
+        return Result.ok(query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list());
+    }
+
+    @Override
+    public Result suggestShopName(String prefix) {
+        if (StrUtil.isBlank(prefix) || !shopNameIndex.isReady()) {
+            return Result.ok(Collections.emptyList());
+        }
+        return Result.ok(shopNameIndex.suggest(prefix, SystemConstants.MAX_PAGE_SIZE));
+    }
+
+    /**
+     * 全量重建redis GEO
+     * 用游标流式读取tb_shop，每批店铺用pipeline写入临时key，全部写完后RENAME替换正式key，
+     * 重建过程中查询不受影响，已删除的店铺也会被清除，已经没有店铺的类型删除其GEO key。
+     * 完成后重新加载本节点的内存地理索引，并通知其他节点各自重新加载
+     */
+    @Transactional(readOnly = true)
+    @Override
+    public Result rebuildGeo() {
+        long begin = System.currentTimeMillis();
+        String suffix = ":rebuild:" + UUID.randomUUID().toString(true);
+        Set<Long> typeIds = new HashSet<>();
+        List<Shop> batch = new ArrayList<>(GEO_LOAD_BATCH);
+        int count = 0;
+        try (Cursor<Shop> cursor = getBaseMapper().scanLocations()) {
+            for (Shop shop : cursor) {
+                batch.add(shop);
+                if (batch.size() == GEO_LOAD_BATCH) {
+                    count += geoAddBatch(batch, suffix, typeIds);
+                    batch.clear();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        count += geoAddBatch(batch, suffix, typeIds);
+        // 临时key替换正式key，RENAME会带上临时key的过期时间，需要去掉
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long typeId : typeIds) {
+                conn.rename(SHOP_GEO_KEY + typeId + suffix, SHOP_GEO_KEY + typeId);
+                conn.persist(SHOP_GEO_KEY + typeId);
+            }
+            return null;
+        });
+        // 已经没有店铺的类型，删除其GEO key
+        List<String> emptyKeys = new ArrayList<>();
+        for (Long typeId : geoTypeIds()) {
+            if (!typeIds.contains(typeId)) {
+                emptyKeys.add(SHOP_GEO_KEY + typeId);
+            }
+        }
+        if (!emptyKeys.isEmpty()) {
+            stringRedisTemplate.delete(emptyKeys);
+        }
+        // 内存地理索引一起重新加载
+        loadGeoIndex();
+        shopIndexTopic.publish(NODE_ID + ":" + GEO_REBUILT);
+        log.info("重建店铺GEO完成, {} 个类型, {} 家店铺, 耗时 {} ms", typeIds.size(), count, System.currentTimeMillis() - begin);
+        return Result.ok(count);
+    }
+
+    /**
+     * SCAN出redis中已有的 shop:geo:{typeId}，跳过游标缓存和重建用的临时key
+     */
+    private Set<Long> geoTypeIds() {
+        Set<Long> typeIds = new HashSet<>();
+        ScanOptions options = ScanOptions.scanOptions().match(SHOP_GEO_KEY + "[0-9]*").count(1000).build();
+        try (org.springframework.data.redis.core.Cursor<byte[]> cursor = stringRedisTemplate.executeWithStickyConnection(
+                (RedisCallback<org.springframework.data.redis.core.Cursor<byte[]>>) connection -> connection.scan(options))) {
+            while (cursor.hasNext()) {
+                String suffix = new String(cursor.next(), StandardCharsets.UTF_8).substring(SHOP_GEO_KEY.length());
+                if (StrUtil.isNumeric(suffix)) {
+                    typeIds.add(Long.valueOf(suffix));
+                }
+            }
+        }
+        return typeIds;
+    }
+
+    /**
+     * 一批店铺按类型分组，pipeline写入各类型的临时GEO key
+     * @return 写入的店铺数
+     */
+    private int geoAddBatch(List<Shop> batch, String suffix, Set<Long> typeIds) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        Map<Long, List<RedisGeoCommands.GeoLocation<String>>> groupMap = new HashMap<>();
+        for (Shop shop : batch) {
+            groupMap.computeIfAbsent(shop.getTypeId(), k -> new ArrayList<>())
+                    .add(new RedisGeoCommands.GeoLocation<>(shop.getId().toString(), new Point(shop.getX(), shop.getY())));
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            groupMap.forEach((typeId, locations) -> {
+                String tmpKey = SHOP_GEO_KEY + typeId + suffix;
+                conn.geoAdd(tmpKey, locations);
+                // 重建中途失败时临时key自动过期
+                conn.expire(tmpKey, TimeUnit.HOURS.toSeconds(1));
+            });
+            return null;
+        });
+        typeIds.addAll(groupMap.keySet());
+        return batch.size();
+    }
+
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y,
+                                  Double radius, Double lastDistance, Long lastId, ShopFilter filter) {
+        if (current == null || current < 1) {
+            current = 1;
+        }
         //1.判断xy是否非空
         if (x == null || y == null) {
             // 根据类型分页查询
@@ -238,43 +697,144 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             // 返回数据
             return Result.ok(page.getRecords());
         }
+        // 坐标和半径不是有限值时无法查询，半径超过上限按上限查询
+        if (!Double.isFinite(x) || !Double.isFinite(y) || radius == null || !Double.isFinite(radius) || radius <= 0) {
+            return Result.fail("坐标或搜索半径不合法");
+        }
+        radius = Math.min(radius, maxRadius);
+        // 游标翻页时current保持默认的1，不受页数限制
+        if (current > maxPage) {
+            return Result.ok(Collections.emptyList());
+        }
         // 2.计算分页参数
         int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
         int end = current* SystemConstants.DEFAULT_PAGE_SIZE;
-        // 3.查询redis、按照举距离排序、分页。
-        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().search(SHOP_GEO_KEY + typeId,
-                GeoReference.fromCoordinate(x, y),
-                new Distance(5000),
-                RedisGeoCommands.GeoRadiusCommandArgs.newGeoSearchArgs().includeDistance().limit(end));
-        // 4.解析出id
-        if (results == null) {
-            return Result.ok(Collections.emptyList());
+        // 内存地理索引已就绪，直接在本地查询
+        if (shopGeoIndex.isReady()) {
+            return queryShopByTypeFromIndex(typeId, x, y, radius, lastDistance, lastId, from, filter);
         }
-        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> content = results.getContent();
-        if (content.size() < from) {
+        // 3.从游标缓存中截取当前页，缓存不存在时查询redis GEO并缓存排好序的前 maxPage 页
+        List<String> page = queryGeoPage(typeId, x, y, radius, from, end);
+        if (page.isEmpty()) {
             return Result.ok(Collections.emptyList());
         }
+        // 4.解析出id和距离
         //店铺id集合
-        List<Long> ids = new ArrayList<>();
+        List<Long> ids = new ArrayList<>(page.size());
         //店铺id与距离之间的映射
-        Map<String, Distance> distanceMap = new HashMap<>(content.size());
-        // 4.1截取from ~ end 的部分
-        content.stream().skip(from).forEach(res -> {
-            //获取shopId
-            String shopId = res.getContent().getName();
-            ids.add(Long.parseLong(shopId));
-            //获取distance
-            Distance distance = res.getDistance();
-            distanceMap.put(shopId, distance);
-        });
+        Map<Long, Double> distanceMap = new HashMap<>(page.size());
+        for (String item : page) {
+            String[] parts = item.split(",");
+            Long shopId = Long.valueOf(parts[0]);
+            ids.add(shopId);
+            distanceMap.put(shopId, Double.valueOf(parts[1]));
+        }
         // 5.根据id查询数据库 保证查出来的结果有序
         String idStr = StrUtil.join(",", ids);
         List<Shop> shopList = this.query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
 
         for (Shop shop : shopList) {
-            shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+            shop.setDistance(distanceMap.get(shop.getId()));
+        }
+        // 没有内存索引时只能对当前页做筛选，排序仍按距离
+        if (filter.hasCondition()) {
+            int minuteOfDay = ShopGeoIndex.minuteOfDay();
+            shopList.removeIf(shop -> !ShopColumns.matches(shop, filter, minuteOfDay));
         }
 
         return Result.ok(shopList);
     }
+
+    /**
+     * 附近店铺的游标缓存
+     * 坐标四舍五入到0.00001度(约1m)，以取整后的位置为圆心GEOSEARCH，按(距离, id)排好序后存为 id,距离 的list，
+     * 最多保存 maxPage 页。返回的距离与排序使用同一个圆心，翻页时只需 LRANGE 当前页，与页码和候选数量无关
+     * @return 当前页的 id,距离
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> queryGeoPage(Integer typeId, Double x, Double y, Double radius, int from, int end) {
+        long pointX = Math.round(x * GEO_POINT_SCALE);
+        long pointY = Math.round(y * GEO_POINT_SCALE);
+        String key = SHOP_GEO_CURSOR_KEY + typeId + ":" + radius.longValue() + ":" + pointX + ":" + pointY;
+        // 读取当前页的同时判断游标是否存在，一次往返
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.lRange(key, from, end - 1);
+            conn.exists(key);
+            return null;
+        });
+        List<String> page = (List<String>) results.get(0);
+        if (page != null && !page.isEmpty()) {
+            return page;
+        }
+        if (BooleanUtil.isTrue((Boolean) results.get(1))) {
+            // 已经翻到最后
+            return Collections.emptyList();
+        }
+        List<String> items = loadGeoCandidates(key, typeId, pointX / GEO_POINT_SCALE, pointY / GEO_POINT_SCALE, radius);
+        return from >= items.size() ? Collections.emptyList() : items.subList(from, Math.min(end, items.size()));
+    }
+
+    /**
+     * 查询半径内最近的 maxPage 页店铺，按(距离, id)排序后写入游标缓存
+     * @return 排好序的 id,距离
+     */
+    private List<String> loadGeoCandidates(String key, Integer typeId, double centerX, double centerY, Double radius) {
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().search(SHOP_GEO_KEY + typeId,
+                GeoReference.fromCoordinate(centerX, centerY),
+                new Distance(radius),
+                RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs()
+                        .includeDistance()
+                        .sortAscending()
+                        .limit((long) maxPage * SystemConstants.DEFAULT_PAGE_SIZE));
+        if (results == null || results.getContent().isEmpty()) {
+            return Collections.emptyList();
+        }
+        // redis只按距离排序，距离相同时按id排序保证翻页稳定
+        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> content = new ArrayList<>(results.getContent());
+        content.sort(Comparator.<GeoResult<RedisGeoCommands.GeoLocation<String>>>comparingDouble(r -> r.getDistance().getValue())
+                .thenComparingLong(r -> Long.parseLong(r.getContent().getName())));
+        List<String> items = new ArrayList<>(content.size());
+        for (GeoResult<RedisGeoCommands.GeoLocation<String>> result : content) {
+            items.add(result.getContent().getName() + "," + result.getDistance().getValue());
+        }
+        // 先写临时key再RENAME，并发构建时不会写出重复的元素
+        String tmpKey = key + ":" + UUID.randomUUID().toString(true);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.rPush(tmpKey, items.toArray(new String[0]));
+            conn.expire(tmpKey, SHOP_GEO_CURSOR_TTL);
+            conn.rename(tmpKey, key);
+            return null;
+        });
+        return items;
+    }
+
+    /**
+     * 使用内存地理和属性索引查询附近店铺
+     * 按距离排序且传了游标(上一页最后一条的距离和id)时按游标翻页，否则按页码跳过from条
+     */
+    private Result queryShopByTypeFromIndex(Integer typeId, Double x, Double y, Double radius,
+                                            Double lastDistance, Long lastId, int from, ShopFilter filter) {
+        boolean useCursor = lastDistance != null && lastId != null && filter.sortByDistance();
+        GeoGrid.Hits hits = shopGeoIndex.search(typeId, x, y, radius, filter,
+                useCursor ? lastDistance : -1, useCursor ? lastId : 0,
+                useCursor ? 0 : from, SystemConstants.DEFAULT_PAGE_SIZE);
+        if (hits.size == 0) {
+            return Result.ok(Collections.emptyList());
+        }
+        List<Long> ids = new ArrayList<>(hits.size);
+        Map<Long, Double> distanceMap = new HashMap<>(hits.size);
+        for (int i = 0; i < hits.size; i++) {
+            ids.add(hits.ids[i]);
+            distanceMap.put(hits.ids[i], hits.distances[i]);
+        }
+        // 根据id查询数据库 保证查出来的结果有序
+        String idStr = StrUtil.join(",", ids);
+        List<Shop> shopList = this.query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+        for (Shop shop : shopList) {
+            shop.setDistance(distanceMap.get(shop.getId()));
+        }
+        return Result.ok(shopList);
+    }
 }
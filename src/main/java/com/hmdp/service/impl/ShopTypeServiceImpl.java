@@ -1,10 +1,26 @@
 package com.hmdp.service.impl;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_VERSION_KEY;
 
 /**
  * <p>
@@ -14,7 +30,81 @@ import org.springframework.stereotype.Service;
  * @author kaka
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ObjectMapper objectMapper;
+
+    /**
+     * 当前快照，只整体替换，不修改内容
+     */
+    private volatile ShopTypeSnapshot snapshot;
+
+    @PostConstruct
+    private void init() {
+        try {
+            checkVersion();
+        } catch (Exception e) {
+            log.error("加载店铺类型快照失败", e);
+        }
+    }
+
+    @Override
+    public ShopTypeSnapshot snapshot() {
+        ShopTypeSnapshot current = snapshot;
+        if (current == null) {
+            // 启动时加载失败，第一次请求时再加载
+            synchronized (this) {
+                if (snapshot == null) {
+                    snapshot = load(currentVersion());
+                }
+                current = snapshot;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * 店铺类型变更后调用，所有节点会在下一次检查时重新加载
+     */
+    @Override
+    public void refreshVersion() {
+        stringRedisTemplate.opsForValue().increment(CACHE_SHOP_TYPE_VERSION_KEY);
+        checkVersion();
+    }
+
+    /**
+     * 定时检查redis中的版本号，变化了才重新加载，请求线程不做任何IO
+     */
+    @Scheduled(fixedDelay = 5000)
+    public void checkVersion() {
+        String version = currentVersion();
+        ShopTypeSnapshot current = snapshot;
+        if (current != null && Objects.equals(current.getVersion(), version)) {
+            return;
+        }
+        snapshot = load(version);
+        log.info("店铺类型快照已更新, version={}", version);
+    }
+
+    private String currentVersion() {
+        stringRedisTemplate.opsForValue().setIfAbsent(CACHE_SHOP_TYPE_VERSION_KEY, "1");
+        return stringRedisTemplate.opsForValue().get(CACHE_SHOP_TYPE_VERSION_KEY);
+    }
+
+    private ShopTypeSnapshot load(String version) {
+        List<ShopType> types = Collections.unmodifiableList(query().orderByAsc("sort").list());
+        try {
+            byte[] body = objectMapper.writeValueAsBytes(Result.ok(types));
+            String etag = "\"" + version + "-" + DigestUtils.md5DigestAsHex(body) + "\"";
+            return new ShopTypeSnapshot(version, types, body, etag);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("店铺类型序列化失败", e);
+        }
+    }
 }
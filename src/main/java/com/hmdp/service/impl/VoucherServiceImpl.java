@@ -7,13 +7,20 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheClient;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.CACHE_VOUCHER_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_VOUCHER_TTL;
 import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
 
 /**
@@ -33,14 +40,56 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        // 查询优惠券信息，优惠券的基本信息基本不变，走缓存
+        List<Voucher> vouchers = cacheClient.queryListWithPassThrough(
+                CACHE_VOUCHER_KEY, shopId, Voucher.class, getBaseMapper()::queryVoucherOfShop,
+                CACHE_VOUCHER_TTL, TimeUnit.MINUTES);
+        // 秒杀券的库存实时变化，从redis中批量读取覆盖
+        overlaySeckillStock(vouchers);
         // 返回结果
         return Result.ok(vouchers);
     }
 
+    /**
+     * 用 seckill:stock:{id} 覆盖秒杀券的库存，一次MGET
+     */
+    private void overlaySeckillStock(List<Voucher> vouchers) {
+        // 关联到秒杀信息的才是秒杀券
+        List<Voucher> seckillVouchers = vouchers.stream()
+                .filter(voucher -> voucher.getStock() != null)
+                .collect(Collectors.toList());
+        if (seckillVouchers.isEmpty()) {
+            return;
+        }
+        List<String> keys = seckillVouchers.stream()
+                .map(voucher -> SECKILL_STOCK_KEY + voucher.getId())
+                .collect(Collectors.toList());
+        List<String> stocks = stringRedisTemplate.opsForValue().multiGet(keys);
+        if (stocks == null) {
+            return;
+        }
+        for (int i = 0; i < seckillVouchers.size(); i++) {
+            String stock = stocks.get(i);
+            if (stock != null) {
+                seckillVouchers.get(i).setStock(Integer.valueOf(stock));
+            }
+        }
+    }
+
+    @Override
+    @Transactional
+    public void addVoucher(Voucher voucher) {
+        // 保存优惠券
+        save(voucher);
+        // 删除店铺的优惠券缓存
+        evictVoucherCache(voucher.getShopId());
+    }
+
     @Override
     @Transactional
     public void addSeckillVoucher(Voucher voucher) {
@@ -55,5 +104,19 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucherService.save(seckillVoucher);
         //保存优惠券信息到redis中
         stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 删除店铺的优惠券缓存
+        evictVoucherCache(voucher.getShopId());
+    }
+
+    /**
+     * 事务提交后删除店铺的优惠券缓存，避免提交前被其他请求用旧数据回填
+     */
+    private void evictVoucherCache(Long shopId) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                cacheClient.delete(CACHE_VOUCHER_KEY + shopId);
+            }
+        });
     }
 }
@@ -1,22 +1,34 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.date.LocalDateTimeUtil;
 import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.ReflectUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 import static com.hmdp.utils.RedisConstants.CACHE_NULL_TTL;
-import static com.hmdp.utils.RedisConstants.LOCK_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_CACHE_KEY;
 
 /**
  * @author kaka
@@ -27,39 +39,156 @@ public class CacheClient {
     @Autowired
     StringRedisTemplate stringRedisTemplate;
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    @Autowired
+    HotKeyDetector hotKeyDetector;
+
+    @Autowired
+    CacheRebuildScheduler cacheRebuildScheduler;
+
+    @Autowired
+    OffHeapCache offHeapCache;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    /**
+     * 缓存查询结果，作为指标的outcome标签，每次查询只记录一个
+     */
+    private static final String HIT = "hit";
+    private static final String NULL_HIT = "null-hit";
+    private static final String MISS = "miss";
+    private static final String STALE = "stale";
+
+    /**
+     * 缓存重建的结果，作为 cache.rebuild.attempts 的result标签，与查询结果分开统计
+     */
+    private static final String REBUILD = "rebuild";
+    private static final String LOCK_CONTENDED = "lock-contended";
+    private static final String DROPPED = "dropped";
+
+    /**
+     * 逻辑过期数据的固定格式 {"expireTime":毫秒,"delta":毫秒,"version":毫秒,"data":Jackson序列化的数据}
+     * data放在最后，读取时只需解析前面的数字，data部分可以原样写入响应体
+     * version为数据的updateTime，数据没有updateTime时省略
+     */
+    private static final String EXPIRE_FIELD = "{\"expireTime\":";
+    private static final String DELTA_FIELD = ",\"delta\":";
+    private static final String VERSION_FIELD = ",\"version\":";
+    private static final String DATA_FIELD = ",\"data\":";
+
+    /**
+     * 数据版本不比缓存中的旧时才写入，避免较早读到的数据覆盖更新后刷新的缓存
+     */
+    private static final DefaultRedisScript<Long> SET_IF_NEWER_SCRIPT;
+    static {
+        SET_IF_NEWER_SCRIPT = new DefaultRedisScript<>();
+        SET_IF_NEWER_SCRIPT.setLocation(new ClassPathResource("cache_set_if_newer.lua"));
+        SET_IF_NEWER_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * TTL随机抖动比例，0.1表示在 [0.9*ttl, 1.1*ttl] 内随机，避免同一批写入的key同时过期
+     */
+    @Value("${hmdp.cache.ttl-jitter:0.1}")
+    private double ttlJitter;
+
+    /**
+     * 是否开启概率提前刷新(XFetch)
+     */
+    @Value("${hmdp.cache.early-refresh.enabled:false}")
+    private boolean earlyRefreshEnabled;
+
+    /**
+     * 提前刷新系数，越大越倾向于提前刷新
+     */
+    @Value("${hmdp.cache.early-refresh.beta:1.0}")
+    private double earlyRefreshBeta;
 
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), jitter(unit.toMillis(time)), TimeUnit.MILLISECONDS);
+        invalidateLocal(key);
+    }
+
+    /**
+     * 删除缓存，同时清除本地的热点缓存
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        invalidateLocal(key);
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
+        setWithLogicalExpire(key, value, time, unit, null);
+    }
+
+    /**
+     * 写入带逻辑过期时间的数据
+     * @param delta 本次重建耗时(ms)，用于概率提前刷新，未知时传null
+     */
+    public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, Long delta) {
         // 设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        // 写入Redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        long expireAt = System.currentTimeMillis() + jitter(unit.toMillis(time));
+        Long version = versionOf(value);
+        String json = toLogicalExpireJson(value, expireAt, delta, version);
+        // 写入Redis，带版本的数据不覆盖更新的版本
+        if (version == null) {
+            stringRedisTemplate.opsForValue().set(key, json);
+        } else {
+            stringRedisTemplate.execute(SET_IF_NEWER_SCRIPT, Collections.singletonList(key), json, version.toString());
+        }
+        invalidateLocal(key);
+    }
+
+    /**
+     * 批量写入带逻辑过期时间的数据，使用pipeline一次网络往返
+     * @param values key -> value
+     */
+    public void setWithLogicalExpireBatch(Map<String, ?> values, Long time, TimeUnit unit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        String script = SET_IF_NEWER_SCRIPT.getScriptAsString();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            values.forEach((key, value) -> {
+                long expireAt = System.currentTimeMillis() + jitter(unit.toMillis(time));
+                Long version = versionOf(value);
+                String json = toLogicalExpireJson(value, expireAt, null, version);
+                if (version == null) {
+                    conn.set(key, json);
+                } else {
+                    conn.eval(script, ReturnType.INTEGER, 1, key, json, version.toString());
+                }
+            });
+            return null;
+        });
+        values.keySet().forEach(this::invalidateLocal);
     }
 
     public <R,ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
         String key = keyPrefix + id;
         // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        String json = get(key);
         // 2.判断是否存在
         if (StrUtil.isNotBlank(json)) {
             // 3.存在，直接返回
+            record(keyPrefix, HIT);
             return JSONUtil.toBean(json, type);
         }
         // 判断命中的是否是空值
         if (json != null) {
             // 返回一个错误信息
+            record(keyPrefix, NULL_HIT);
             return null;
         }
 
         // 4.不存在，根据id查询数据库
-        R r = dbFallback.apply(id);
+        record(keyPrefix, MISS);
+        R r = loadFromDb(keyPrefix, id, dbFallback);
         // 5.不存在，返回错误
         if (r == null) {
             // 将空值写入redis
@@ -72,81 +201,276 @@ public class CacheClient {
         return r;
     }
 
+    /**
+     * 缓存列表数据，空列表也会缓存，防止缓存穿透
+     */
+    public <R, ID> List<R> queryListWithPassThrough(
+            String keyPrefix, ID id, Class<R> elementType, Function<ID, List<R>> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        String json = get(key);
+        if (json != null) {
+            record(keyPrefix, HIT);
+            return JSONUtil.toList(json, elementType);
+        }
+        record(keyPrefix, MISS);
+        List<R> list = loadFromDb(keyPrefix, id, dbFallback);
+        if (list == null) {
+            list = Collections.emptyList();
+        }
+        this.set(key, list, time, unit);
+        return list;
+    }
+
+    /**
+     * 批量查询，缓存空值防止穿透
+     * 1.本地缓存 -> 一次MGET
+     * 2.未命中的id一次性查询数据库
+     * 3.查到的数据和不存在的空值用一次pipeline写回
+     * @param dbFallback 根据未命中的id批量查询数据库，返回 id -> 数据
+     * @return id -> 数据，不存在的id不在结果中
+     */
+    public <R, ID> Map<ID, R> queryBatchWithPassThrough(
+            String keyPrefix, Collection<ID> ids, Class<R> type,
+            Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit) {
+        Map<ID, R> result = new HashMap<>(ids.size() * 2);
+        List<ID> remoteIds = new ArrayList<>(ids.size());
+        List<String> remoteKeys = new ArrayList<>(ids.size());
+        for (ID id : new LinkedHashSet<>(ids)) {
+            String key = keyPrefix + id;
+            hotKeyDetector.record(key);
+            String json = hotKeyDetector.getLocal(key);
+            if (json == null) {
+                json = offHeapCache.get(key);
+            }
+            if (json == null) {
+                remoteIds.add(id);
+                remoteKeys.add(key);
+            } else if (StrUtil.isNotBlank(json)) {
+                record(keyPrefix, HIT);
+                result.put(id, JSONUtil.toBean(json, type));
+            } else {
+                record(keyPrefix, NULL_HIT);
+            }
+        }
+        if (remoteKeys.isEmpty()) {
+            return result;
+        }
+        List<String> jsons = stringRedisTemplate.opsForValue().multiGet(remoteKeys);
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            String json = jsons == null ? null : jsons.get(i);
+            if (json == null) {
+                record(keyPrefix, MISS);
+                missIds.add(remoteIds.get(i));
+                continue;
+            }
+            hotKeyDetector.putLocal(remoteKeys.get(i), json);
+            offHeapCache.put(remoteKeys.get(i), json);
+            if (StrUtil.isNotBlank(json)) {
+                record(keyPrefix, HIT);
+                result.put(remoteIds.get(i), JSONUtil.toBean(json, type));
+            } else {
+                record(keyPrefix, NULL_HIT);
+            }
+        }
+        if (missIds.isEmpty()) {
+            return result;
+        }
+        Map<ID, R> loaded = loadFromDb(keyPrefix, missIds, dbFallback);
+        Map<String, String> values = new HashMap<>(missIds.size() * 2);
+        for (ID id : missIds) {
+            R r = loaded == null ? null : loaded.get(id);
+            if (r != null) {
+                result.put(id, r);
+            }
+            values.put(keyPrefix + id, r == null ? "" : JSONUtil.toJsonStr(r));
+        }
+        long nullTtl = TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            values.forEach((key, json) -> {
+                if (json.isEmpty()) {
+                    conn.setEx(key, nullTtl, json);
+                } else {
+                    conn.pSetEx(key, jitter(unit.toMillis(time)), json);
+                }
+            });
+            return null;
+        });
+        values.keySet().forEach(this::invalidateLocal);
+        return result;
+    }
+
     public <R, ID> R queryWithLogicalExpire(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
         // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        String json = get(key);
+        return queryWithLogicalExpire(keyPrefix, id, json, null, type, dbFallback, time, unit);
+    }
+
+    /**
+     * 逻辑过期查询的快速路径，返回Jackson序列化好的数据，可以直接写入响应体
+     * 未过期命中时直接截取缓存中的data部分，不做反序列化和再序列化；其余情况走 {@link #queryWithLogicalExpire} 后再序列化
+     * 是否过期(含提前刷新)只判断一次，并传给 {@link #queryWithLogicalExpire}，提前刷新的概率不会被抽取两次
+     * @return 数据不存在返回null
+     */
+    public <R, ID> String queryPayloadWithLogicalExpire(
+            String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        String json = get(key);
+        Boolean expired = null;
+        int dataStart = dataStart(json);
+        if (dataStart > 0) {
+            expired = isExpired(expireAt(json), delta(json));
+            String payload = json.substring(dataStart, json.length() - 1);
+            if (!expired && !"null".equals(payload)) {
+                record(keyPrefix, HIT);
+                return payload;
+            }
+        }
+        R r = queryWithLogicalExpire(keyPrefix, id, json, expired, type, dbFallback, time, unit);
+        return r == null ? null : toJson(r);
+    }
+
+    /**
+     * @param expired 调用方已经判断过的是否过期，null表示由本方法判断
+     */
+    private <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, String json, Boolean expired,
+            Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
         // 2.判断是否存在
         if (StrUtil.isBlank(json)) {
-            // 3.存在，直接返回
-            return null;
+            // 3.命中空值，直接返回
+            if (json != null) {
+                record(keyPrefix, NULL_HIT);
+                return null;
+            }
+            // 3.1.未命中，查询数据库
+            record(keyPrefix, MISS);
+            R r = loadFromDb(keyPrefix, id, dbFallback);
+            if (r == null) {
+                // 将空值写入redis 解决缓存穿透
+                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+                return null;
+            }
+            // 3.2.异步回填缓存，同一个key同时只回填一次
+            cacheRebuildScheduler.submit(key, () -> this.setWithLogicalExpire(key, r, time, unit));
+            return r;
         }
         // 4.命中，需要先把json反序列化为对象
         RedisData redisData = JSONUtil.toBean(json, RedisData.class);
         R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
         LocalDateTime expireTime = redisData.getExpireTime();
         // 5.判断是否过期
-        if(expireTime.isAfter(LocalDateTime.now())) {
+        if (expired == null) {
+            expired = isExpired(LocalDateTimeUtil.toEpochMilli(expireTime), redisData.getDelta());
+        }
+        if (!expired) {
             // 5.1.未过期，直接返回店铺信息
+            record(keyPrefix, HIT);
             return r;
         }
-        // 5.2.已过期，需要缓存重建
+        record(keyPrefix, STALE);
+        // 5.2.已过期(或命中提前刷新)，需要缓存重建
         // 6.缓存重建
-        // 6.1.获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
+        // 本节点已经在重建，直接返回旧数据
+        if (cacheRebuildScheduler.isRebuilding(key)) {
+            recordRebuild(keyPrefix, LOCK_CONTENDED);
+            return r;
+        }
+        // 6.1.获取互斥锁，每个缓存key一把锁
+        String lockKey = LOCK_CACHE_KEY + key;
         boolean isLock = tryLock(lockKey);
         // 6.2.判断是否获取锁成功
         if (isLock){
-            // 6.3.成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+            // 6.3.成功，提交到重建调度器，实现缓存重建
+            boolean submitted = cacheRebuildScheduler.submit(key, () -> {
                 try {
-                    // 查询数据库
-                    R newR = dbFallback.apply(id);
+                    // 查询数据库，并记录重建耗时
+                    long begin = System.currentTimeMillis();
+                    R newR = loadFromDb(keyPrefix, id, dbFallback);
+                    long delta = System.currentTimeMillis() - begin;
                     // 重建缓存
-                    this.setWithLogicalExpire(key, newR, time, unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }finally {
+                    this.setWithLogicalExpire(key, newR, time, unit, delta);
+                } finally {
                     // 释放锁
                     unlock(lockKey);
                 }
             });
+            if (submitted) {
+                recordRebuild(keyPrefix, REBUILD);
+            } else {
+                // 重复或队列已满被丢弃，释放锁
+                recordRebuild(keyPrefix, DROPPED);
+                unlock(lockKey);
+            }
+        } else {
+            recordRebuild(keyPrefix, LOCK_CONTENDED);
         }
         // 6.4.返回过期的商铺信息
         return r;
     }
 
+    /**
+     * 数据更新后刷新逻辑过期缓存，应在事务提交后调用
+     * 写入按数据的updateTime做版本比较，并发的过期重建读到的旧数据不会覆盖刷新后的缓存；
+     * 同一个key正在重建时，正在执行的任务可能读到了旧数据，等它结束后再刷新一次
+     * 队列已满无法提交时直接删除缓存，由下一次查询回填，避免长时间读到旧数据
+     */
+    public <R, ID> void refreshLogicalExpire(
+            String keyPrefix, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        invalidateLocal(key);
+        boolean submitted = cacheRebuildScheduler.submitAfterPending(key, () -> {
+            long begin = System.currentTimeMillis();
+            R r = loadFromDb(keyPrefix, id, dbFallback);
+            long delta = System.currentTimeMillis() - begin;
+            if (r == null) {
+                this.delete(key);
+                return;
+            }
+            this.setWithLogicalExpire(key, r, time, unit, delta);
+        });
+        if (!submitted) {
+            this.delete(key);
+        }
+    }
+
     public <R, ID> R queryWithMutex(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
         // 1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
+        String shopJson = get(key);
         // 2.判断是否存在
         if (StrUtil.isNotBlank(shopJson)) {
             // 3.存在，直接返回
+            record(keyPrefix, HIT);
             return JSONUtil.toBean(shopJson, type);
         }
         // 判断命中的是否是空值
         if (shopJson != null) {
             // 返回一个错误信息
+            record(keyPrefix, NULL_HIT);
             return null;
         }
 
         // 4.实现缓存重建
-        // 4.1.获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
+        // 4.1.获取互斥锁，每个缓存key一把锁
+        String lockKey = LOCK_CACHE_KEY + key;
         R r = null;
         try {
             boolean isLock = tryLock(lockKey);
             // 4.2.判断是否获取成功
             if (!isLock) {
-                // 4.3.获取锁失败，休眠并重试
+                // 4.3.获取锁失败，休眠并重试，重试时再记录查询结果
+                recordRebuild(keyPrefix, LOCK_CONTENDED);
                 Thread.sleep(50);
                 return queryWithMutex(keyPrefix, id, type, dbFallback, time, unit);
             }
             // 4.4.获取锁成功，根据id查询数据库
-            r = dbFallback.apply(id);
+            record(keyPrefix, MISS);
+            r = loadFromDb(keyPrefix, id, dbFallback);
             // 5.不存在，返回错误
             if (r == null) {
                 // 将空值写入redis 解决缓存穿透
@@ -166,6 +490,185 @@ public class CacheClient {
         return r;
     }
 
+    /**
+     * 记录缓存查询结果 cache.requests{prefix, outcome}
+     */
+    private void record(String keyPrefix, String outcome) {
+        meterRegistry.counter("cache.requests", "prefix", keyPrefix, "outcome", outcome).increment();
+    }
+
+    /**
+     * 记录缓存重建的结果 cache.rebuild.attempts{prefix, result}
+     */
+    private void recordRebuild(String keyPrefix, String result) {
+        meterRegistry.counter("cache.rebuild.attempts", "prefix", keyPrefix, "result", result).increment();
+    }
+
+    /**
+     * 查询数据库并记录耗时 cache.db.fallback{prefix}
+     */
+    private <R, ID> R loadFromDb(String keyPrefix, ID id, Function<ID, R> dbFallback) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try {
+            return dbFallback.apply(id);
+        } finally {
+            sample.stop(meterRegistry.timer("cache.db.fallback", "prefix", keyPrefix));
+        }
+    }
+
+    /**
+     * 读取缓存: 热点key本地缓存 -> 堆外缓存 -> redis
+     */
+    private String get(String key) {
+        hotKeyDetector.record(key);
+        String json = hotKeyDetector.getLocal(key);
+        if (json != null) {
+            return json;
+        }
+        json = offHeapCache.get(key);
+        if (json != null) {
+            return json;
+        }
+        json = stringRedisTemplate.opsForValue().get(key);
+        if (json != null) {
+            hotKeyDetector.putLocal(key, json);
+            offHeapCache.put(key, json);
+        }
+        return json;
+    }
+
+    /**
+     * 按固定格式序列化逻辑过期数据，日期等格式与接口响应一致
+     */
+    private String toLogicalExpireJson(Object value, long expireAt, Long delta, Long version) {
+        return EXPIRE_FIELD + expireAt + DELTA_FIELD + (delta == null ? 0 : delta)
+                + (version == null ? "" : VERSION_FIELD + version) + DATA_FIELD + toJson(value) + "}";
+    }
+
+    /**
+     * 数据的版本，取实体的updateTime(ms)，没有该字段时返回null，写入时不做版本比较
+     * updateTime精确到秒，同一秒内的多次更新版本相同，相同版本允许覆盖
+     */
+    static Long versionOf(Object value) {
+        if (value == null || ReflectUtil.getField(value.getClass(), "updateTime") == null) {
+            return null;
+        }
+        Object updateTime = ReflectUtil.getFieldValue(value, "updateTime");
+        return updateTime instanceof LocalDateTime ? LocalDateTimeUtil.toEpochMilli((LocalDateTime) updateTime) : null;
+    }
+
+    private String toJson(Object value) {
+        try {
+            return objectMapper.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 只解析固定格式的头部
+     * @return data部分的起始位置，不是固定格式(如旧数据、空值)时返回-1
+     */
+    static int dataStart(String json) {
+        if (json == null || !json.startsWith(EXPIRE_FIELD)) {
+            return -1;
+        }
+        int i = EXPIRE_FIELD.length();
+        int end = digitsEnd(json, i);
+        if (end == i || !json.startsWith(DELTA_FIELD, end)) {
+            return -1;
+        }
+        i = end + DELTA_FIELD.length();
+        end = digitsEnd(json, i);
+        if (end == i) {
+            return -1;
+        }
+        // 版本可选
+        if (json.startsWith(VERSION_FIELD, end)) {
+            i = end + VERSION_FIELD.length();
+            end = digitsEnd(json, i);
+            if (end == i) {
+                return -1;
+            }
+        }
+        if (!json.startsWith(DATA_FIELD, end)) {
+            return -1;
+        }
+        return end + DATA_FIELD.length();
+    }
+
+    /**
+     * 固定格式中的逻辑过期时间，调用前需要 {@link #dataStart} 校验格式
+     */
+    static long expireAt(String json) {
+        int i = EXPIRE_FIELD.length();
+        return Long.parseLong(json.substring(i, digitsEnd(json, i)));
+    }
+
+    /**
+     * 固定格式中的重建耗时，调用前需要 {@link #dataStart} 校验格式
+     */
+    static long delta(String json) {
+        int i = json.indexOf(DELTA_FIELD) + DELTA_FIELD.length();
+        return Long.parseLong(json.substring(i, digitsEnd(json, i)));
+    }
+
+    private static int digitsEnd(String s, int from) {
+        int i = from;
+        while (i < s.length() && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * 清除本节点的各级本地缓存
+     */
+    private void invalidateLocal(String key) {
+        hotKeyDetector.invalidateLocal(key);
+        offHeapCache.invalidate(key);
+    }
+
+    /**
+     * 对TTL做随机抖动
+     * @param ttlMillis 原始TTL(ms)
+     * @return 抖动后的TTL(ms)
+     */
+    private long jitter(long ttlMillis) {
+        long span = (long) (ttlMillis * ttlJitter);
+        if (span <= 0) {
+            return ttlMillis;
+        }
+        return ttlMillis + ThreadLocalRandom.current().nextLong(-span, span + 1);
+    }
+
+    /**
+     * 是否已过期或命中提前刷新，一次读取只调用一次
+     */
+    private boolean isExpired(long expireAt, Long delta) {
+        long now = System.currentTimeMillis();
+        if (expireAt <= now) {
+            return true;
+        }
+        if (!earlyRefreshEnabled || delta == null) {
+            return false;
+        }
+        // rand取 (0,1]，避免ln(0)
+        return shouldRefreshEarly(now, expireAt, delta, earlyRefreshBeta, 1.0 - ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * XFetch: 越接近过期、重建越慢，越有可能提前触发刷新
+     * 条件: now - delta * beta * ln(rand) >= expireTime
+     */
+    static boolean shouldRefreshEarly(long now, long expireAt, long delta, double beta, double rand) {
+        if (delta <= 0) {
+            return false;
+        }
+        long gap = (long) (-delta * beta * Math.log(rand));
+        return now + gap >= expireAt;
+    }
+
     private boolean tryLock(String key) {
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
         return BooleanUtil.isTrue(flag);
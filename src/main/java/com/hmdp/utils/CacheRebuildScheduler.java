@@ -0,0 +1,230 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓存重建调度器，所有异步缓存重建共用
+ * 1.同一个key在本节点同时只会有一个重建任务，数据更新后的刷新在正在执行的任务结束后再执行一次
+ * 2.队列有界，满了直接丢弃新任务(调用方继续返回旧数据)
+ * 3.越热的key越先重建
+ * 4.记录队列长度、重建耗时、失败次数
+ * @author kaka
+ */
+@Slf4j
+@Component
+public class CacheRebuildScheduler {
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${hmdp.cache.rebuild.threads:10}")
+    private int threads;
+
+    @Value("${hmdp.cache.rebuild.queue-capacity:1000}")
+    private int queueCapacity;
+
+    private ThreadPoolExecutor executor;
+
+    /**
+     * 正在排队或执行的key
+     */
+    private final Set<String> pendingKeys = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 正在重建的key结束后需要再执行的任务，同一个key只保留最后一个，与 pendingKeys 一起在 pendingKeys 上加锁修改
+     */
+    private final Map<String, Runnable> followUps = new HashMap<>();
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * 重建耗时 cache.rebuild.latency
+     */
+    private Timer latency;
+
+    @PostConstruct
+    private void init() {
+        AtomicInteger threadIndex = new AtomicInteger();
+        // PriorityBlockingQueue 本身无界，容量由 queued 计数控制
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(),
+                r -> {
+                    Thread thread = new Thread(r, "cache-rebuild-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        // 注册指标
+        Gauge.builder("cache.rebuild.queue.depth", executor, e -> e.getQueue().size()).register(meterRegistry);
+        Gauge.builder("cache.rebuild.active", executor, ThreadPoolExecutor::getActiveCount).register(meterRegistry);
+        registerCounter("submitted", submitted);
+        registerCounter("deduplicated", deduplicated);
+        registerCounter("shed", shed);
+        registerCounter("succeeded", succeeded);
+        registerCounter("failed", failed);
+        latency = Timer.builder("cache.rebuild.latency")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    private void registerCounter(String result, LongAdder adder) {
+        FunctionCounter.builder("cache.rebuild.tasks", adder, LongAdder::sum)
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdown();
+    }
+
+    /**
+     * 该key是否已经在重建
+     */
+    public boolean isRebuilding(String key) {
+        return pendingKeys.contains(key);
+    }
+
+    /**
+     * 提交重建任务
+     * @param key 缓存key
+     * @param task 重建逻辑
+     * @return 是否提交成功，重复或被丢弃时返回false
+     */
+    public boolean submit(String key, Runnable task) {
+        boolean added;
+        synchronized (pendingKeys) {
+            added = pendingKeys.add(key);
+        }
+        if (!added) {
+            deduplicated.increment();
+            return false;
+        }
+        if (queued.incrementAndGet() > queueCapacity) {
+            queued.decrementAndGet();
+            pendingKeys.remove(key);
+            shed.increment();
+            log.warn("缓存重建队列已满，丢弃任务 key={}", key);
+            return false;
+        }
+        submitted.increment();
+        executor.execute(new RebuildTask(key, task, hotKeyDetector.hotness(key), sequence.incrementAndGet()));
+        return true;
+    }
+
+    /**
+     * 提交数据更新后的重建任务
+     * 该key已经在排队或执行时，正在执行的任务可能读到了更新前的数据，等它结束后再执行本任务
+     * @return 是否提交成功，队列已满被丢弃时返回false
+     */
+    public boolean submitAfterPending(String key, Runnable task) {
+        synchronized (pendingKeys) {
+            if (pendingKeys.contains(key)) {
+                followUps.put(key, task);
+                return true;
+            }
+        }
+        return submit(key, task);
+    }
+
+    /**
+     * 运行指标
+     */
+    public Map<String, Number> stats() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("queueDepth", executor.getQueue().size());
+        stats.put("active", executor.getActiveCount());
+        stats.put("submitted", submitted.sum());
+        stats.put("deduplicated", deduplicated.sum());
+        stats.put("shed", shed.sum());
+        stats.put("succeeded", succeeded.sum());
+        stats.put("failed", failed.sum());
+        stats.put("avgLatencyMs", latency.mean(TimeUnit.MILLISECONDS));
+        stats.put("maxLatencyMs", latency.max(TimeUnit.MILLISECONDS));
+        return stats;
+    }
+
+    private class RebuildTask implements Runnable, Comparable<RebuildTask> {
+        private final String key;
+        private final Runnable task;
+        private final long hotness;
+        private final long seq;
+
+        private RebuildTask(String key, Runnable task, long hotness, long seq) {
+            this.key = key;
+            this.task = task;
+            this.hotness = hotness;
+            this.seq = seq;
+        }
+
+        @Override
+        public void run() {
+            queued.decrementAndGet();
+            long begin = System.nanoTime();
+            try {
+                task.run();
+                succeeded.increment();
+            } catch (Exception e) {
+                failed.increment();
+                log.error("缓存重建失败 key={}", key, e);
+            } finally {
+                latency.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+                Runnable next;
+                synchronized (pendingKeys) {
+                    next = followUps.remove(key);
+                    if (next == null) {
+                        pendingKeys.remove(key);
+                    }
+                }
+                if (next != null) {
+                    // key保持在重建中，接着执行更新后提交的任务
+                    queued.incrementAndGet();
+                    submitted.increment();
+                    try {
+                        executor.execute(new RebuildTask(key, next, hotKeyDetector.hotness(key), sequence.incrementAndGet()));
+                    } catch (RejectedExecutionException e) {
+                        // 正在关闭
+                        queued.decrementAndGet();
+                        pendingKeys.remove(key);
+                    }
+                }
+            }
+        }
+
+        /**
+         * 热度高的先执行，热度相同先提交的先执行
+         */
+        @Override
+        public int compareTo(RebuildTask o) {
+            int c = Long.compare(o.hotness, hotness);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.date.LocalDateTimeUtil;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * 缓存快照
+ * 定期把最热的缓存数据写到本地的内存映射文件，节点重启时先加载快照，
+ * 用实体的updateTime作为版本号和数据库比对，仍然有效的数据直接写回本地缓存和redis，不必再查询数据库。
+ * 只恢复逻辑过期格式且尚未过期的数据，其他数据原本的ttl已无法得知，恢复后会一直留在redis中
+ * <p>
+ * 文件格式: [魔数 4][格式版本 4][创建时间 8][条数 4] 之后每条 [key长度 2][key][版本号 8][value长度 4][value]
+ * </p>
+ * @author kaka
+ */
+@Slf4j
+@Component
+public class CacheSnapshot {
+
+    private static final int MAGIC = 0x484D4450;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private OffHeapCache offHeapCache;
+
+    @Value("${hmdp.cache.snapshot.path:cache-snapshot.bin}")
+    private String path;
+
+    /**
+     * 读取redis中的数据写入快照文件
+     * @param keys 需要写入快照的key
+     * @return 写入的条数
+     */
+    public int save(List<String> keys) throws IOException {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        if (values == null) {
+            return 0;
+        }
+        List<byte[]> keyBytes = new ArrayList<>(keys.size());
+        List<byte[]> valueBytes = new ArrayList<>(keys.size());
+        List<Long> versions = new ArrayList<>(keys.size());
+        long size = HEADER_SIZE;
+        for (int i = 0; i < keys.size(); i++) {
+            String value = values.get(i);
+            Long version = versionOf(value);
+            if (version == null) {
+                // 不存在、空值或没有版本号的数据无法校验，不写入快照
+                continue;
+            }
+            byte[] k = keys.get(i).getBytes(StandardCharsets.UTF_8);
+            byte[] v = value.getBytes(StandardCharsets.UTF_8);
+            keyBytes.add(k);
+            valueBytes.add(v);
+            versions.add(version);
+            size += 2 + k.length + 8 + 4 + v.length;
+        }
+        // 先写临时文件再替换，避免写到一半时重启读到不完整的快照
+        Path target = Paths.get(path).toAbsolutePath();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        if (target.getParent() != null) {
+            Files.createDirectories(target.getParent());
+        }
+        try (FileChannel channel = FileChannel.open(tmp,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(System.currentTimeMillis()).putInt(keyBytes.size());
+            for (int i = 0; i < keyBytes.size(); i++) {
+                buffer.putShort((short) keyBytes.get(i).length).put(keyBytes.get(i));
+                buffer.putLong(versions.get(i));
+                buffer.putInt(valueBytes.get(i).length).put(valueBytes.get(i));
+            }
+            buffer.force();
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return keyBytes.size();
+    }
+
+    /**
+     * 加载快照，校验版本号和逻辑过期时间后写回本地缓存和redis(redis中已存在的key不覆盖)。
+     * 本地缓存只有开启堆外缓存(hmdp.cache.off-heap.enabled)时才会写入，默认只恢复redis
+     * @param versionLoaders key前缀 -> 根据id批量查询数据库中的updateTime
+     * @return key前缀 -> 成功恢复的id
+     */
+    public Map<String, Set<Long>> restore(
+            Map<String, Function<Collection<Long>, Map<Long, LocalDateTime>>> versionLoaders) throws IOException {
+        Path file = Paths.get(path).toAbsolutePath();
+        if (!Files.exists(file)) {
+            return Collections.emptyMap();
+        }
+        // key前缀 -> (id -> 快照中的版本号, value)
+        Map<String, Map<Long, Long>> snapshotVersions = new HashMap<>();
+        Map<String, String> snapshotValues = new HashMap<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                log.warn("缓存快照格式不正确，忽略 {}", file);
+                return Collections.emptyMap();
+            }
+            long createdAt = buffer.getLong();
+            int count = buffer.getInt();
+            int skipped = 0;
+            for (int i = 0; i < count; i++) {
+                byte[] k = new byte[buffer.getShort()];
+                buffer.get(k);
+                long version = buffer.getLong();
+                byte[] v = new byte[buffer.getInt()];
+                buffer.get(v);
+                String key = new String(k, StandardCharsets.UTF_8);
+                for (String prefix : versionLoaders.keySet()) {
+                    if (key.startsWith(prefix)) {
+                        Long id = parseId(key, prefix);
+                        if (id == null) {
+                            // 无法解析的key只跳过这一条，不影响其他条目的恢复
+                            log.warn("缓存快照中的key无法解析，跳过 {}", key);
+                            skipped++;
+                            break;
+                        }
+                        snapshotVersions.computeIfAbsent(prefix, p -> new HashMap<>()).put(id, version);
+                        snapshotValues.put(key, new String(v, StandardCharsets.UTF_8));
+                        break;
+                    }
+                }
+            }
+            log.info("读取缓存快照 {} 条, 跳过 {} 条, 创建于 {}", count, skipped, new Date(createdAt));
+        }
+        // 每个前缀一次批量查询，和数据库中的updateTime比对
+        Map<String, Set<Long>> restored = new HashMap<>();
+        Map<String, String> valid = new HashMap<>();
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        for (Map.Entry<String, Map<Long, Long>> entry : snapshotVersions.entrySet()) {
+            String prefix = entry.getKey();
+            Map<Long, LocalDateTime> current = versionLoaders.get(prefix).apply(entry.getValue().keySet());
+            Set<Long> ids = new HashSet<>();
+            for (Map.Entry<Long, Long> e : entry.getValue().entrySet()) {
+                Long id = e.getKey();
+                LocalDateTime updateTime = current.get(id);
+                if (updateTime == null || LocalDateTimeUtil.toEpochMilli(updateTime) != e.getValue()) {
+                    continue;
+                }
+                String value = snapshotValues.get(prefix + id);
+                // 已经逻辑过期的数据恢复后首次读取就会触发重建，交给正常预热处理
+                if (CacheClient.dataStart(value) < 0 || CacheClient.expireAt(value) <= now) {
+                    expired++;
+                    continue;
+                }
+                ids.add(id);
+                valid.put(prefix + id, value);
+            }
+            restored.put(prefix, ids);
+        }
+        if (!valid.isEmpty()) {
+            if (offHeapCache.isEnabled()) {
+                valid.forEach(offHeapCache::put);
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                valid.forEach(conn::setNX);
+                return null;
+            });
+        }
+        log.info("缓存快照校验通过 {} 条, 已过期 {} 条", valid.size(), expired);
+        return restored;
+    }
+
+    /**
+     * 从key中解析id
+     * @return 后缀不是数字时返回null
+     */
+    private static Long parseId(String key, String prefix) {
+        try {
+            return Long.valueOf(key.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 从缓存的json中取出updateTime作为版本号，兼容逻辑过期的 {expireTime, data} 结构
+     */
+    private static Long versionOf(String json) {
+        if (json == null || json.isEmpty()) {
+            return null;
+        }
+        try {
+            JSONObject obj = JSONUtil.parseObj(json);
+            JSONObject data = obj.getJSONObject("data");
+            Object updateTime = (data != null ? data : obj).get("updateTime");
+            if (updateTime == null) {
+                return null;
+            }
+            // 逻辑过期数据由Jackson序列化，日期是字符串；hutool序列化的是毫秒数
+            return updateTime instanceof Number ? ((Number) updateTime).longValue()
+                    : LocalDateTimeUtil.toEpochMilli(Convert.toLocalDateTime(updateTime));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.CACHE_HOT_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_HOT_TTL;
+
+/**
+ * 缓存预热
+ * 滚动记录最近两天访问最多的id，应用启动或手动触发时，批量将这些数据加载到redis，避免冷启动时请求全部打到数据库
+ * 同时定期把这些数据写入本地快照 {@link CacheSnapshot}，重启时先从快照恢复，只有快照中没有或已过期的数据才查询数据库
+ * @author kaka
+ */
+@Slf4j
+@Component
+public class CacheWarmer implements ApplicationRunner {
+
+    public static final String SHOP = "shop";
+    public static final String BLOG = "blog";
+
+    private static final DateTimeFormatter DAY_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private CacheSnapshot cacheSnapshot;
+
+    @Value("${hmdp.cache.warm-up.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.cache.warm-up.size:500}")
+    private int warmUpSize;
+
+    @Value("${hmdp.cache.snapshot.enabled:true}")
+    private boolean snapshotEnabled;
+
+    @Value("${hmdp.cache.snapshot.size:1000}")
+    private int snapshotSize;
+
+    /**
+     * 本地累计的访问次数 type -> (id -> count)，定时批量写入redis，避免每次访问多一次网络往返
+     */
+    private final Map<String, Map<Long, LongAdder>> counters = new ConcurrentHashMap<>();
+
+    /**
+     * 各类型数据的批量加载方法 type -> loader
+     */
+    private final Map<String, Consumer<List<Long>>> loaders = new ConcurrentHashMap<>();
+
+    /**
+     * 支持快照的类型 type -> 缓存key前缀
+     */
+    private final Map<String, String> keyPrefixes = new ConcurrentHashMap<>();
+
+    /**
+     * 支持快照的类型 type -> 根据id批量查询updateTime，用于校验快照
+     */
+    private final Map<String, Function<Collection<Long>, Map<Long, LocalDateTime>>> versionLoaders = new ConcurrentHashMap<>();
+
+    /**
+     * 注册某类数据的批量加载方法
+     * @param type 数据类型
+     * @param loader 根据id集合批量写入缓存
+     */
+    public void register(String type, Consumer<List<Long>> loader) {
+        loaders.put(type, loader);
+    }
+
+    /**
+     * 注册某类数据的批量加载方法，并将其写入本地快照
+     * @param type 数据类型
+     * @param keyPrefix 缓存key前缀，key = keyPrefix + id
+     * @param loader 根据id集合批量写入缓存
+     * @param versionLoader 根据id集合批量查询数据库中的updateTime
+     */
+    public void register(String type, String keyPrefix, Consumer<List<Long>> loader,
+                         Function<Collection<Long>, Map<Long, LocalDateTime>> versionLoader) {
+        loaders.put(type, loader);
+        keyPrefixes.put(type, keyPrefix);
+        versionLoaders.put(type, versionLoader);
+    }
+
+    /**
+     * 记录一次访问
+     */
+    public void recordAccess(String type, Long id) {
+        if (id == null) {
+            return;
+        }
+        counters.computeIfAbsent(type, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(id, k -> new LongAdder())
+                .increment();
+    }
+
+    /**
+     * 将本地访问计数批量刷入redis ZINCRBY cache:hot:{type}:{yyyyMMdd} count id，
+     * 之后裁剪排行只保留预热和快照用到的前若干名，避免访问过的id全部堆积在一天的排行里
+     */
+    @Scheduled(fixedDelay = 5000)
+    public void flush() {
+        // 多保留一倍，让排名靠后但访问在增长的id有机会累计进前列
+        long retain = 2L * Math.max(warmUpSize, snapshotSize);
+        for (Map.Entry<String, Map<Long, LongAdder>> entry : counters.entrySet()) {
+            Map<Long, Double> increments = new HashMap<>();
+            Iterator<Map.Entry<Long, LongAdder>> it = entry.getValue().entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, LongAdder> e = it.next();
+                long count = e.getValue().sumThenReset();
+                if (count == 0) {
+                    // 一个周期内没有访问，移除计数器
+                    it.remove();
+                    continue;
+                }
+                increments.put(e.getKey(), (double) count);
+            }
+            if (increments.isEmpty()) {
+                continue;
+            }
+            String key = hotKey(entry.getKey(), LocalDate.now());
+            try {
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection conn = (StringRedisConnection) connection;
+                    increments.forEach((id, count) -> conn.zIncrBy(key, count, id.toString()));
+                    conn.zRemRange(key, 0, -retain - 1);
+                    conn.expire(key, TimeUnit.DAYS.toSeconds(CACHE_HOT_TTL));
+                    return null;
+                });
+            } catch (Exception e) {
+                log.error("刷新访问计数失败, key={}", key, e);
+            }
+        }
+    }
+
+    /**
+     * 查询最近两天访问最多的id
+     * @param type 数据类型
+     * @param size 数量
+     * @return 按热度倒序的id
+     */
+    public List<Long> hottestIds(String type, int size) {
+        LocalDate today = LocalDate.now();
+        Map<Long, Double> scores = new HashMap<>();
+        for (LocalDate day : Arrays.asList(today, today.minusDays(1))) {
+            Set<ZSetOperations.TypedTuple<String>> tuples = stringRedisTemplate.opsForZSet()
+                    .reverseRangeWithScores(hotKey(type, day), 0, size - 1);
+            if (tuples == null) {
+                continue;
+            }
+            for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+                scores.merge(Long.valueOf(tuple.getValue()), tuple.getScore(), Double::sum);
+            }
+        }
+        return scores.entrySet().stream()
+                .sorted(Map.Entry.<Long, Double>comparingByValue().reversed())
+                .limit(size)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 预热所有已注册类型的缓存
+     * @return 每种类型预热的数量
+     */
+    public Map<String, Integer> warmUp() {
+        return warmUp(Collections.emptyMap());
+    }
+
+    /**
+     * 预热所有已注册类型的缓存
+     * @param skipIds type -> 已经从快照恢复、不需要再加载的id
+     * @return 每种类型预热的数量
+     */
+    private Map<String, Integer> warmUp(Map<String, Set<Long>> skipIds) {
+        Map<String, Integer> loaded = new LinkedHashMap<>();
+        for (Map.Entry<String, Consumer<List<Long>>> entry : loaders.entrySet()) {
+            String type = entry.getKey();
+            try {
+                List<Long> ids = hottestIds(type, warmUpSize);
+                Set<Long> skip = skipIds.get(type);
+                if (skip != null) {
+                    ids.removeAll(skip);
+                }
+                if (!ids.isEmpty()) {
+                    entry.getValue().accept(ids);
+                }
+                loaded.put(type, ids.size());
+            } catch (Exception e) {
+                log.error("缓存预热失败, type={}", type, e);
+                loaded.put(type, 0);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * ApplicationRunner 执行完之后应用才会发布 ReadinessState.ACCEPTING_TRAFFIC，所以预热完成前节点不会被判定为就绪
+     */
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        Map<String, Set<Long>> restored = restoreSnapshot();
+        Map<String, Integer> loaded = warmUp(restored);
+        log.info("缓存预热完成 {}, 耗时 {} ms", loaded, System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 定期将各类型最热的数据写入本地快照
+     */
+    @Scheduled(initialDelayString = "${hmdp.cache.snapshot.interval:300000}",
+            fixedDelayString = "${hmdp.cache.snapshot.interval:300000}")
+    public void saveSnapshot() {
+        if (!snapshotEnabled || keyPrefixes.isEmpty()) {
+            return;
+        }
+        try {
+            List<String> keys = new ArrayList<>();
+            keyPrefixes.forEach((type, prefix) -> {
+                for (Long id : hottestIds(type, snapshotSize)) {
+                    keys.add(prefix + id);
+                }
+            });
+            int saved = cacheSnapshot.save(keys);
+            log.debug("缓存快照已保存 {} 条", saved);
+        } catch (Exception e) {
+            log.error("保存缓存快照失败", e);
+        }
+    }
+
+    /**
+     * 从本地快照恢复缓存，失败时不影响正常预热
+     * @return type -> 恢复成功的id
+     */
+    private Map<String, Set<Long>> restoreSnapshot() {
+        if (!snapshotEnabled || keyPrefixes.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        try {
+            Map<String, Function<Collection<Long>, Map<Long, LocalDateTime>>> byPrefix = new HashMap<>();
+            keyPrefixes.forEach((type, prefix) -> byPrefix.put(prefix, versionLoaders.get(type)));
+            Map<String, Set<Long>> restored = cacheSnapshot.restore(byPrefix);
+            Map<String, Set<Long>> byType = new HashMap<>();
+            keyPrefixes.forEach((type, prefix) -> {
+                Set<Long> ids = restored.get(prefix);
+                if (ids != null) {
+                    byType.put(type, ids);
+                }
+            });
+            return byType;
+        } catch (Exception e) {
+            log.error("恢复缓存快照失败", e);
+            return Collections.emptyMap();
+        }
+    }
+
+    private String hotKey(String type, LocalDate day) {
+        return CACHE_HOT_KEY + type + ":" + day.format(DAY_FORMATTER);
+    }
+}
@@ -0,0 +1,67 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count-Min Sketch，用固定内存估算key的访问次数，估算值只会偏大不会偏小
+ * @author kaka
+ */
+public class CountMinSketch {
+
+    private final int depth;
+    private final int width;
+    private final AtomicLongArray[] table;
+
+    /**
+     * @param depth 哈希函数个数(行数)
+     * @param width 每行的计数器个数，取2的幂
+     */
+    public CountMinSketch(int depth, int width) {
+        if (Integer.bitCount(width) != 1) {
+            throw new IllegalArgumentException("width必须是2的幂");
+        }
+        this.depth = depth;
+        this.width = width;
+        this.table = new AtomicLongArray[depth];
+        for (int i = 0; i < depth; i++) {
+            table[i] = new AtomicLongArray(width);
+        }
+    }
+
+    /**
+     * 累加计数并返回累加后的估算值
+     */
+    public long add(String key, long count) {
+        int h1 = mix(key.hashCode());
+        int h2 = mix(h1 ^ 0x9E3779B9) | 1;
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            int index = (h1 + i * h2) & (width - 1);
+            min = Math.min(min, table[i].addAndGet(index, count));
+        }
+        return min;
+    }
+
+    /**
+     * 估算访问次数
+     */
+    public long estimate(String key) {
+        int h1 = mix(key.hashCode());
+        int h2 = mix(h1 ^ 0x9E3779B9) | 1;
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            int index = (h1 + i * h2) & (width - 1);
+            min = Math.min(min, table[i].get(index));
+        }
+        return min;
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,318 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Follow;
+import com.hmdp.mapper.FollowMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 笔记推送到粉丝收件箱(写扩散)
+ * <p>
+ * 1.每次推送是一个任务，任务信息和进度保存在redis中 feed:fanout:job:{blogId}，进程退出后重启时从进度处继续，
+ *   失败的任务由定时任务重试；执行前获取任务的分布式锁，多个节点同时只有一个在执行同一个任务
+ * 2.按id游标分页读取粉丝(WHERE follow_user_id = ? AND id > cursor ORDER BY id LIMIT n)，每页一个分片
+ * 3.一个分片用一次管道写入所有粉丝的收件箱并裁剪到容量上限，分片在有界线程池中并行执行
+ * 4.分片按提交顺序确认完成后才推进进度，重启后重复推送的分片是幂等的(ZADD同一个member和score)
+ * 5.记录从发布到推送完成的耗时 feed.fanout.latency
+ * </p>
+ * @author kaka
+ */
+@Slf4j
+@Component
+public class FeedFanout {
+
+    private static final String FIELD_AUTHOR = "author";
+    private static final String FIELD_TIME = "time";
+    private static final String FIELD_CURSOR = "cursor";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private FollowMapper followMapper;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    /**
+     * 同时执行的推送任务数
+     */
+    @Value("${hmdp.feed.fanout.jobs:2}")
+    private int jobs;
+
+    /**
+     * 执行分片的线程数，也是一个任务同时在执行的分片数上限
+     */
+    @Value("${hmdp.feed.fanout.threads:4}")
+    private int threads;
+
+    /**
+     * 每个分片的粉丝数
+     */
+    @Value("${hmdp.feed.fanout.chunk-size:500}")
+    private int chunkSize;
+
+    /**
+     * 收件箱保留的最新条数
+     */
+    @Value("${hmdp.feed.capacity:1000}")
+    private int capacity;
+
+    private ExecutorService jobExecutor;
+
+    private ThreadPoolExecutor chunkExecutor;
+
+    /**
+     * 本节点正在执行的任务，避免重复执行
+     */
+    private final Set<String> running = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 从发布到推送完成的耗时
+     */
+    private Timer latency;
+
+    private Timer chunkLatency;
+
+    private Counter pushed;
+
+    @PostConstruct
+    private void init() {
+        jobExecutor = Executors.newFixedThreadPool(jobs, daemonFactory("feed-fanout-job-"));
+        // 队列满了由任务线程自己执行分片，读取粉丝的速度不会超过写入的速度
+        chunkExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 2), daemonFactory("feed-fanout-"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        Gauge.builder("feed.fanout.jobs.running", running, Set::size).register(meterRegistry);
+        latency = Timer.builder("feed.fanout.latency")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        chunkLatency = Timer.builder("feed.fanout.chunk.latency")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        pushed = meterRegistry.counter("feed.fanout.pushed");
+    }
+
+    private static ThreadFactory daemonFactory(String prefix) {
+        AtomicInteger threadIndex = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @PreDestroy
+    private void destroy() {
+        // 未完成的任务保留在redis中，重启后继续
+        jobExecutor.shutdownNow();
+        chunkExecutor.shutdownNow();
+    }
+
+    /**
+     * 保存推送任务并异步执行
+     * @param blogId 笔记id
+     * @param authorId 作者id
+     * @param time 发布时间，作为收件箱中的score
+     */
+    public void submit(Long blogId, Long authorId, long time) {
+        String id = blogId.toString();
+        Map<String, String> fields = new HashMap<>(4);
+        fields.put(FIELD_AUTHOR, authorId.toString());
+        fields.put(FIELD_TIME, String.valueOf(time));
+        fields.put(FIELD_CURSOR, "0");
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.hMSet(FEED_FANOUT_JOB_KEY + id, fields);
+            conn.sAdd(FEED_FANOUT_JOBS_KEY, id);
+            return null;
+        });
+        start(id);
+    }
+
+    /**
+     * 启动后继续执行未完成的任务
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resume() {
+        startAll();
+    }
+
+    /**
+     * 定时重试失败的任务，本节点正在执行的任务不会重复启动，其他节点正在执行的任务拿不到锁直接跳过
+     */
+    @Scheduled(initialDelayString = "${hmdp.feed.fanout.retry-interval:60000}",
+            fixedDelayString = "${hmdp.feed.fanout.retry-interval:60000}")
+    public void retry() {
+        startAll();
+    }
+
+    private void startAll() {
+        Set<String> ids = stringRedisTemplate.opsForSet().members(FEED_FANOUT_JOBS_KEY);
+        if (ids == null || ids.isEmpty()) {
+            return;
+        }
+        for (String id : ids) {
+            start(id);
+        }
+    }
+
+    private void start(String blogId) {
+        if (!running.add(blogId)) {
+            return;
+        }
+        try {
+            jobExecutor.execute(() -> {
+                try {
+                    runWithLock(blogId);
+                } finally {
+                    running.remove(blogId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 正在关闭，任务保留在redis中
+            running.remove(blogId);
+        }
+    }
+
+    /**
+     * 获取任务的锁后读取最新的进度执行，其他节点正在执行时跳过
+     */
+    private void runWithLock(String blogId) {
+        RLock lock = redissonClient.getLock(LOCK_FEED_FANOUT_KEY + blogId);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            Map<Object, Object> job = stringRedisTemplate.opsForHash().entries(FEED_FANOUT_JOB_KEY + blogId);
+            if (job.isEmpty()) {
+                // 已经推送完成
+                stringRedisTemplate.opsForSet().remove(FEED_FANOUT_JOBS_KEY, blogId);
+                return;
+            }
+            long cursor = Long.parseLong(StrUtil.toString(job.get(FIELD_CURSOR)));
+            if (cursor > 0) {
+                log.info("继续推送 blogId={} cursor={}", blogId, cursor);
+            }
+            run(blogId, Long.valueOf(StrUtil.toString(job.get(FIELD_AUTHOR))),
+                    Long.parseLong(StrUtil.toString(job.get(FIELD_TIME))), cursor);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void run(String blogId, Long authorId, long time, long cursor) {
+        // 已提交未确认的分片，按提交顺序排列
+        Deque<Chunk> inFlight = new ArrayDeque<>();
+        int fans = 0;
+        try {
+            while (true) {
+                List<Follow> follows = followMapper.selectList(new QueryWrapper<Follow>()
+                        .select("id", "user_id")
+                        .eq("follow_user_id", authorId)
+                        .gt("id", cursor)
+                        .orderByAsc("id")
+                        .last("LIMIT " + chunkSize));
+                if (follows.isEmpty()) {
+                    break;
+                }
+                cursor = follows.get(follows.size() - 1).getId();
+                List<Long> userIds = new ArrayList<>(follows.size());
+                for (Follow follow : follows) {
+                    userIds.add(follow.getUserId());
+                }
+                fans += userIds.size();
+                inFlight.add(new Chunk(cursor, chunkExecutor.submit(() -> push(blogId, time, userIds))));
+                // 达到并行上限时等待最早的分片
+                if (inFlight.size() >= threads) {
+                    checkpoint(blogId, inFlight.poll());
+                }
+                if (follows.size() < chunkSize) {
+                    break;
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                checkpoint(blogId, inFlight.poll());
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                conn.del(FEED_FANOUT_JOB_KEY + blogId);
+                conn.sRem(FEED_FANOUT_JOBS_KEY, blogId);
+                return null;
+            });
+            latency.record(System.currentTimeMillis() - time, TimeUnit.MILLISECONDS);
+            log.info("推送完成 blogId={} 粉丝数={}", blogId, fans);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("推送中断 blogId={}，重启后继续", blogId);
+        } catch (Exception e) {
+            log.error("推送失败 blogId={}，稍后从上次的进度重试", blogId, e);
+        }
+    }
+
+    /**
+     * 等待分片完成并保存进度
+     */
+    private void checkpoint(String blogId, Chunk chunk) throws InterruptedException, ExecutionException {
+        chunk.future.get();
+        stringRedisTemplate.opsForHash().put(FEED_FANOUT_JOB_KEY + blogId, FIELD_CURSOR, String.valueOf(chunk.cursor));
+    }
+
+    /**
+     * 一次管道写入一个分片的收件箱，只保留最新的 capacity 条
+     */
+    private void push(String blogId, long time, List<Long> userIds) {
+        long begin = System.nanoTime();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long userId : userIds) {
+                String key = FEED_KEY + userId;
+                conn.zAdd(key, time, blogId);
+                conn.zRemRange(key, 0, -capacity - 1);
+            }
+            return null;
+        });
+        chunkLatency.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        pushed.increment(userIds.size());
+    }
+
+    private static class Chunk {
+        /**
+         * 分片中最后一个关注记录的id
+         */
+        private final long cursor;
+        private final Future<?> future;
+
+        private Chunk(long cursor, Future<?> future) {
+            this.cursor = cursor;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.core.ZSetOperations;
+
+import java.util.*;
+
+/**
+ * 多路合并关注流: 粉丝收件箱 + 关注的大V发件箱
+ * <p>
+ * 1.游标与单个收件箱时相同: max为上一页最小的时间戳，offset为上一页中时间戳等于max的条数
+ * 2.每一路都按 ZREVRANGEBYSCORE key max 0 LIMIT 0 offset+size 读取，合并后的前 offset+size 条一定在这些结果中
+ * 3.合并顺序与redis一致: 时间戳倒序，时间戳相同按member字典序倒序，保证同一时间戳的多条在不同页之间不重不漏
+ * 4.作者从普通用户变为大V前推送过的笔记会同时出现在收件箱和发件箱中(时间戳相同)，合并时去重
+ * </p>
+ * @author kaka
+ */
+public class FeedMerger {
+
+    private static final Comparator<ZSetOperations.TypedTuple<String>> ORDER =
+            Comparator.comparing((ZSetOperations.TypedTuple<String> t) -> t.getScore()).reversed()
+                    .thenComparing(ZSetOperations.TypedTuple::getValue, Comparator.reverseOrder());
+
+    private FeedMerger() {
+    }
+
+    /**
+     * @param sources 每一路读取的结果
+     * @param max 游标: 上一页最小的时间戳
+     * @param offset 游标: 上一页中时间戳等于max的条数
+     * @param size 每页条数
+     * @return 当前页，没有数据时ids为空
+     */
+    public static FeedPage merge(List<Set<ZSetOperations.TypedTuple<String>>> sources, long max, int offset, int size) {
+        List<ZSetOperations.TypedTuple<String>> all = new ArrayList<>();
+        for (Set<ZSetOperations.TypedTuple<String>> source : sources) {
+            if (source != null) {
+                all.addAll(source);
+            }
+        }
+        all.sort(ORDER);
+        FeedPage page = new FeedPage();
+        Set<String> seen = new HashSet<>();
+        int skipped = 0;
+        for (ZSetOperations.TypedTuple<String> tuple : all) {
+            if (!seen.add(tuple.getValue())) {
+                continue;
+            }
+            long time = tuple.getScore().longValue();
+            // 跳过上一页已经返回的、时间戳等于max的笔记
+            if (time == max && skipped < offset) {
+                skipped++;
+                continue;
+            }
+            page.ids.add(Long.parseLong(tuple.getValue()));
+            if (time == page.minTime) {
+                page.offset++;
+            } else {
+                page.minTime = time;
+                page.offset = 1;
+            }
+            if (page.ids.size() == size) {
+                break;
+            }
+        }
+        // 当前页全部与上一页同一个时间戳，下一页还要跳过上一页的部分
+        if (page.minTime == max) {
+            page.offset += skipped;
+        }
+        return page;
+    }
+
+    public static class FeedPage {
+        private final List<Long> ids = new ArrayList<>();
+        private long minTime = -1;
+        private int offset;
+
+        public List<Long> getIds() {
+            return ids;
+        }
+
+        public long getMinTime() {
+            return minTime;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.hmdp.utils;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * 网格空间索引，不可变
+ * <p>
+ * 1.按经纬度把平面划分为边长 cellSize 度的网格，点按 (网格y, 网格x) 排序后存放在基本类型数组中
+ * 2.查询时从所在网格开始一圈一圈向外扩展，当前圈的最近可能距离已经超过半径或第k个结果的距离时停止
+ * 3.结果按 (距离, id) 排序，可以用上一页最后一条的 (距离, id) 作为游标查询下一页
+ * 4.每个点记录构造时传入的下标(row)，调用方可以按row过滤或关联其他列
+ * </p>
+ * @author kaka
+ */
+public class GeoGrid {
+
+    /**
+     * 与redis GEO相同的地球半径(m)
+     */
+    private static final double EARTH_RADIUS = 6372797.560856;
+    private static final double METERS_PER_DEGREE = Math.toRadians(1) * EARTH_RADIUS;
+
+    private final double cellSize;
+
+    private final long[] ids;
+    private final double[] xs;
+    private final double[] ys;
+    private final int[] rows;
+
+    /**
+     * 非空网格的key(升序)，以及每个网格在点数组中的起始下标，cellStart[cellKeys.length] = 点数
+     */
+    private final long[] cellKeys;
+    private final int[] cellStart;
+
+    private final int minCx;
+    private final int maxCx;
+    private final int minCy;
+    private final int maxCy;
+
+    /**
+     * @param cellSize 网格边长(度)
+     * @param ids 点id
+     * @param xs 经度
+     * @param ys 纬度
+     */
+    public GeoGrid(double cellSize, long[] ids, double[] xs, double[] ys) {
+        this.cellSize = cellSize;
+        int n = ids.length;
+        long[] keys = new long[n];
+        Integer[] order = new Integer[n];
+        int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            int cx = cell(xs[i]);
+            int cy = cell(ys[i]);
+            keys[i] = cellKey(cx, cy);
+            order[i] = i;
+            minX = Math.min(minX, cx);
+            maxX = Math.max(maxX, cx);
+            minY = Math.min(minY, cy);
+            maxY = Math.max(maxY, cy);
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+        this.ids = new long[n];
+        this.xs = new double[n];
+        this.ys = new double[n];
+        this.rows = new int[n];
+        long[] cellKeyBuf = new long[n];
+        int[] cellStartBuf = new int[n + 1];
+        int cells = 0;
+        for (int i = 0; i < n; i++) {
+            int j = order[i];
+            this.ids[i] = ids[j];
+            this.xs[i] = xs[j];
+            this.ys[i] = ys[j];
+            this.rows[i] = j;
+            if (cells == 0 || cellKeyBuf[cells - 1] != keys[j]) {
+                cellKeyBuf[cells] = keys[j];
+                cellStartBuf[cells] = i;
+                cells++;
+            }
+        }
+        cellStartBuf[cells] = n;
+        this.cellKeys = Arrays.copyOf(cellKeyBuf, cells);
+        this.cellStart = Arrays.copyOf(cellStartBuf, cells + 1);
+        this.minCx = minX;
+        this.maxCx = maxX;
+        this.minCy = minY;
+        this.maxCy = maxY;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * 查询半径内最近的点，按 (距离, id) 升序
+     * @param radius 半径(m)
+     * @param afterDistance 游标: 上一页最后一条的距离，没有游标传负数
+     * @param afterId 游标: 上一页最后一条的id
+     * @param skip 跳过的条数(按页码分页时使用)
+     * @param limit 返回条数
+     * @param filter 按row过滤，null表示不过滤
+     * @throws IllegalArgumentException skip、limit为负数或 skip + limit 溢出，坐标或半径不是有限值
+     */
+    public Hits search(double x, double y, double radius, double afterDistance, long afterId,
+                       int skip, int limit, IntPredicate filter) {
+        if (skip < 0 || limit < 0 || skip > Integer.MAX_VALUE - limit) {
+            throw new IllegalArgumentException("skip和limit不合法: " + skip + ", " + limit);
+        }
+        checkArea(x, y, radius);
+        TopK top = new TopK(skip + limit);
+        if (top.k <= 0 || ids.length == 0) {
+            return new Hits(new long[0], new double[0], new int[0], 0);
+        }
+        int cx0 = cell(x);
+        int cy0 = cell(y);
+        for (int r = 0; r <= maxRing(cx0, cy0); r++) {
+            double bound = ringLowerBound(y, r);
+            if (bound > radius || (top.n == top.k && bound > top.distances[top.k - 1])) {
+                break;
+            }
+            for (int idx : cellsInRing(cx0, cy0, r)) {
+                for (int i = cellStart[idx]; i < cellStart[idx + 1]; i++) {
+                    double d = distance(x, y, xs[i], ys[i]);
+                    long id = ids[i];
+                    if (d > radius || d < afterDistance || (d == afterDistance && id <= afterId)) {
+                        continue;
+                    }
+                    if (filter == null || filter.test(rows[i])) {
+                        top.offer(d, id, rows[i]);
+                    }
+                }
+            }
+        }
+        if (top.n <= skip) {
+            return new Hits(new long[0], new double[0], new int[0], 0);
+        }
+        return new Hits(Arrays.copyOfRange(top.ids, skip, top.n), Arrays.copyOfRange(top.distances, skip, top.n),
+                Arrays.copyOfRange(top.rows, skip, top.n), top.n - skip);
+    }
+
+    /**
+     * 查询半径内的全部点，不排序，用于按其他字段排序的场景
+     * @param filter 按row过滤，null表示不过滤
+     */
+    public Hits within(double x, double y, double radius, IntPredicate filter) {
+        checkArea(x, y, radius);
+        int capacity = 64;
+        long[] hitIds = new long[capacity];
+        double[] hitDistances = new double[capacity];
+        int[] hitRows = new int[capacity];
+        int n = 0;
+        if (ids.length == 0) {
+            return new Hits(hitIds, hitDistances, hitRows, 0);
+        }
+        int cx0 = cell(x);
+        int cy0 = cell(y);
+        for (int r = 0; r <= maxRing(cx0, cy0) && ringLowerBound(y, r) <= radius; r++) {
+            for (int idx : cellsInRing(cx0, cy0, r)) {
+                for (int i = cellStart[idx]; i < cellStart[idx + 1]; i++) {
+                    double d = distance(x, y, xs[i], ys[i]);
+                    if (d > radius || (filter != null && !filter.test(rows[i]))) {
+                        continue;
+                    }
+                    if (n == capacity) {
+                        capacity <<= 1;
+                        hitIds = Arrays.copyOf(hitIds, capacity);
+                        hitDistances = Arrays.copyOf(hitDistances, capacity);
+                        hitRows = Arrays.copyOf(hitRows, capacity);
+                    }
+                    hitIds[n] = ids[i];
+                    hitDistances[n] = d;
+                    hitRows[n] = rows[i];
+                    n++;
+                }
+            }
+        }
+        return new Hits(hitIds, hitDistances, hitRows, n);
+    }
+
+    /**
+     * 坐标和半径必须是有限值，否则网格下标和扩展的圈数没有意义
+     */
+    private static void checkArea(double x, double y, double radius) {
+        if (!Double.isFinite(x) || !Double.isFinite(y) || !Double.isFinite(radius)) {
+            throw new IllegalArgumentException("坐标和半径必须是有限值");
+        }
+    }
+
+    private int maxRing(int cx0, int cy0) {
+        return Math.max(Math.max(Math.abs(cx0 - minCx), Math.abs(cx0 - maxCx)),
+                Math.max(Math.abs(cy0 - minCy), Math.abs(cy0 - maxCy)));
+    }
+
+    /**
+     * 第r圈中非空网格在cellKeys中的下标: 上下两行 + 左右两列(不含四角)
+     */
+    private int[] cellsInRing(int cx0, int cy0, int r) {
+        int[] found = new int[r == 0 ? 1 : 8 * r];
+        int n = 0;
+        for (int cx = cx0 - r; cx <= cx0 + r; cx++) {
+            n = addCell(found, n, cx, cy0 - r);
+            if (r > 0) {
+                n = addCell(found, n, cx, cy0 + r);
+            }
+        }
+        for (int cy = cy0 - r + 1; cy <= cy0 + r - 1; cy++) {
+            n = addCell(found, n, cx0 - r, cy);
+            n = addCell(found, n, cx0 + r, cy);
+        }
+        return Arrays.copyOf(found, n);
+    }
+
+    private int addCell(int[] found, int n, int cx, int cy) {
+        int idx = Arrays.binarySearch(cellKeys, cellKey(cx, cy));
+        if (idx >= 0) {
+            found[n++] = idx;
+        }
+        return n;
+    }
+
+    /**
+     * 第r圈中的点到查询点的最小可能距离
+     * 查询点所在网格与第r圈之间至少隔了 r-1 个完整网格，经度方向按圈内最高纬度估算，偏保守
+     */
+    private double ringLowerBound(double y, int r) {
+        if (r <= 1) {
+            return 0;
+        }
+        double latMeters = cellSize * METERS_PER_DEGREE;
+        double maxLat = Math.min(89.9, Math.abs(y) + (r + 1) * cellSize);
+        double lonMeters = latMeters * Math.cos(Math.toRadians(maxLat));
+        return (r - 1) * Math.min(latMeters, lonMeters);
+    }
+
+    private int cell(double degree) {
+        return (int) Math.floor(degree / cellSize);
+    }
+
+    private static long cellKey(int cx, int cy) {
+        return ((long) cy << 32) | (cx & 0xFFFFFFFFL);
+    }
+
+    /**
+     * haversine距离(m)，与redis GEO的计算方式一致
+     */
+    public static double distance(double x1, double y1, double x2, double y2) {
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double u = Math.sin((lat2 - lat1) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2.0 * EARTH_RADIUS * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+    }
+
+    /**
+     * 按 (距离, id) 保留最小的k个，插入排序，k通常只有几十
+     */
+    private static class TopK {
+        private final int k;
+        private final long[] ids;
+        private final double[] distances;
+        private final int[] rows;
+        private int n;
+
+        private TopK(int k) {
+            this.k = Math.max(k, 0);
+            this.ids = new long[this.k];
+            this.distances = new double[this.k];
+            this.rows = new int[this.k];
+        }
+
+        private void offer(double d, long id, int row) {
+            if (n == k && !less(d, id, distances[k - 1], ids[k - 1])) {
+                return;
+            }
+            int pos = n == k ? k - 1 : n++;
+            while (pos > 0 && less(d, id, distances[pos - 1], ids[pos - 1])) {
+                distances[pos] = distances[pos - 1];
+                ids[pos] = ids[pos - 1];
+                rows[pos] = rows[pos - 1];
+                pos--;
+            }
+            distances[pos] = d;
+            ids[pos] = id;
+            rows[pos] = row;
+        }
+
+        private static boolean less(double d1, long id1, double d2, long id2) {
+            return d1 < d2 || (d1 == d2 && id1 < id2);
+        }
+    }
+
+    /**
+     * 查询结果
+     */
+    public static class Hits {
+        public final long[] ids;
+        public final double[] distances;
+        /**
+         * 构造GeoGrid时传入的下标
+         */
+        public final int[] rows;
+        public final int size;
+
+        Hits(long[] ids, double[] distances, int[] rows, int size) {
+            this.ids = ids;
+            this.distances = distances;
+            this.rows = rows;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.hmdp.utils.RedisConstants.CACHE_HOT_KEY_WINDOW_KEY;
+
+/**
+ * 热点key探测
+ * 1.每个节点对key的访问抽样，用Count-Min Sketch计数，并维护本节点的top-K
+ * 2.窗口按 当前时间 / window 对齐，所有节点的第n个窗口是同一段时间。第n个窗口结束后，每个节点把本窗口的top-K
+ *   汇总到redis的第n个桶，同时读取已经全部写完的第n-1个桶，所有节点读到同一份合并结果
+ * 3.合并后超过阈值的key视为热点key，读取时自动缓存到本地，本地缓存有效期很短
+ * @author kaka
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.cache.hot-key.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 抽样比例，1表示每次访问都计数
+     */
+    @Value("${hmdp.cache.hot-key.sample-rate:0.1}")
+    private double sampleRate;
+
+    /**
+     * 每个节点保留的候选热点key数量
+     */
+    @Value("${hmdp.cache.hot-key.top-k:100}")
+    private int topK;
+
+    /**
+     * 一个窗口内整个集群访问次数达到该值即为热点key
+     */
+    @Value("${hmdp.cache.hot-key.threshold:500}")
+    private long threshold;
+
+    /**
+     * 统计窗口(ms)
+     */
+    @Value("${hmdp.cache.hot-key.window:5000}")
+    private long window;
+
+    /**
+     * 本节点正在统计的窗口序号
+     */
+    private long currentWindow = -1;
+
+    /**
+     * 热点key本地缓存的有效期(ms)
+     */
+    @Value("${hmdp.cache.hot-key.local-ttl:2000}")
+    private long localTtl;
+
+    private volatile CountMinSketch sketch = new CountMinSketch(4, 1 << 12);
+
+    /**
+     * 本节点当前窗口的候选热点key -> 估算访问次数
+     */
+    private final Map<String, Long> candidates = new ConcurrentHashMap<>();
+
+    /**
+     * 集群合并后的热点key -> 上一个窗口的访问次数
+     */
+    private volatile Map<String, Long> hotKeys = Collections.emptyMap();
+
+    /**
+     * 热点key的本地缓存
+     */
+    private final Map<String, LocalEntry> localCache = new ConcurrentHashMap<>();
+
+    /**
+     * 记录一次访问(抽样)
+     */
+    public void record(String key) {
+        if (!enabled || ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        long estimate = (long) (sketch.add(key, 1) / sampleRate);
+        offer(key, estimate);
+    }
+
+    /**
+     * key的热度，用于决定缓存重建的先后
+     */
+    public long hotness(String key) {
+        Long count = hotKeys.get(key);
+        if (count != null) {
+            return count;
+        }
+        return (long) (sketch.estimate(key) / sampleRate);
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * 读取热点key的本地缓存
+     * @return 未缓存或已过期返回null
+     */
+    public String getLocal(String key) {
+        LocalEntry entry = localCache.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expireAt < System.currentTimeMillis()) {
+            localCache.remove(key, entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * 是热点key才写入本地缓存
+     */
+    public void putLocal(String key, String value) {
+        if (isHot(key)) {
+            localCache.put(key, new LocalEntry(value, System.currentTimeMillis() + localTtl));
+        }
+    }
+
+    public void invalidateLocal(String key) {
+        localCache.remove(key);
+    }
+
+    /**
+     * 当前集群热点key，按访问次数倒序
+     */
+    public Map<String, Long> hotKeys() {
+        return hotKeys;
+    }
+
+    /**
+     * 定时检查窗口是否结束，间隔远小于窗口，窗口结束后尽快上报
+     * 窗口结束：本窗口的top-K上报到本窗口的桶，拉取上一个窗口的集群合并结果，开始新窗口
+     */
+    @Scheduled(fixedRateString = "${hmdp.cache.hot-key.tick:200}")
+    public void rotate() {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long windowIndex = now / window;
+        if (currentWindow < 0) {
+            currentWindow = windowIndex;
+            return;
+        }
+        if (windowIndex == currentWindow) {
+            return;
+        }
+        // 每个窗口只上报一次，节点之间的执行时间差只影响窗口边界附近的少量计数
+        long ended = currentWindow;
+        currentWindow = windowIndex;
+        Map<String, Long> local = new HashMap<>(candidates);
+        candidates.clear();
+        sketch = new CountMinSketch(4, 1 << 12);
+        // 清理过期的本地缓存
+        localCache.entrySet().removeIf(e -> e.getValue().expireAt < now);
+
+        String key = CACHE_HOT_KEY_WINDOW_KEY + ended;
+        // 上一个窗口的桶，所有节点都在本窗口开始时上报完毕
+        String completedKey = CACHE_HOT_KEY_WINDOW_KEY + (ended - 1);
+        try {
+            if (!local.isEmpty()) {
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection conn = (StringRedisConnection) connection;
+                    local.forEach((k, count) -> conn.zIncrBy(key, count, k));
+                    conn.pExpire(key, window * 4);
+                    return null;
+                });
+            }
+            Set<ZSetOperations.TypedTuple<String>> tuples = stringRedisTemplate.opsForZSet()
+                    .reverseRangeByScoreWithScores(completedKey, threshold, Double.MAX_VALUE, 0, topK);
+            Map<String, Long> merged = new LinkedHashMap<>();
+            if (tuples != null) {
+                for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+                    merged.put(tuple.getValue(), tuple.getScore().longValue());
+                }
+            }
+            // 不再是热点的key移出本地缓存
+            localCache.keySet().removeIf(k -> !merged.containsKey(k));
+            hotKeys = merged;
+        } catch (Exception e) {
+            log.error("热点key汇总失败", e);
+        }
+    }
+
+    /**
+     * 维护本节点top-K候选
+     */
+    private void offer(String key, long estimate) {
+        if (candidates.containsKey(key) || candidates.size() < topK) {
+            candidates.put(key, estimate);
+            return;
+        }
+        synchronized (candidates) {
+            // 已满，替换掉估算次数最小的key
+            Map.Entry<String, Long> min = null;
+            for (Map.Entry<String, Long> e : candidates.entrySet()) {
+                if (min == null || e.getValue() < min.getValue()) {
+                    min = e;
+                }
+            }
+            if (min != null && min.getValue() < estimate) {
+                candidates.remove(min.getKey());
+                candidates.put(key, estimate);
+            }
+        }
+    }
+
+    private static class LocalEntry {
+        private final String value;
+        private final long expireAt;
+
+        private LocalEntry(String value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+}
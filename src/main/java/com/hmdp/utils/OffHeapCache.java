@@ -0,0 +1,130 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 堆外一级缓存，位于redis之前
+ * 按key前缀划分，每个前缀一个 {@link OffHeapEntityStore}，只缓存 前缀+数字id 形式的key
+ * 各节点之间不同步，靠较短的本地有效期保证最终一致
+ * @author kaka
+ */
+@Slf4j
+@Component
+public class OffHeapCache {
+
+    @Value("${hmdp.cache.off-heap.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * 启用堆外缓存的key前缀
+     */
+    @Value("${hmdp.cache.off-heap.prefixes:cache:shop:}")
+    private List<String> prefixes;
+
+    @Value("${hmdp.cache.off-heap.segments:8}")
+    private int segments;
+
+    /**
+     * 每段大小(MB)
+     */
+    @Value("${hmdp.cache.off-heap.segment-size:16}")
+    private int segmentSize;
+
+    /**
+     * 本地有效期(ms)
+     */
+    @Value("${hmdp.cache.off-heap.ttl:10000}")
+    private long ttl;
+
+    private final Map<String, OffHeapEntityStore> stores = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        for (String prefix : prefixes) {
+            stores.put(prefix, new OffHeapEntityStore(segments, segmentSize << 20));
+        }
+        log.info("堆外缓存已开启, prefixes={}, 容量 {} MB/前缀", prefixes, segments * segmentSize);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return 未缓存返回null
+     */
+    public String get(String key) {
+        for (Map.Entry<String, OffHeapEntityStore> entry : stores.entrySet()) {
+            Long id = parseId(entry.getKey(), key);
+            if (id != null) {
+                byte[] data = entry.getValue().get(id);
+                return data == null ? null : new String(data, StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    public void put(String key, String value) {
+        for (Map.Entry<String, OffHeapEntityStore> entry : stores.entrySet()) {
+            Long id = parseId(entry.getKey(), key);
+            if (id != null) {
+                entry.getValue().put(id, System.currentTimeMillis() + ttl, value.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+        }
+    }
+
+    public void invalidate(String key) {
+        for (Map.Entry<String, OffHeapEntityStore> entry : stores.entrySet()) {
+            Long id = parseId(entry.getKey(), key);
+            if (id != null) {
+                entry.getValue().remove(id);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 各前缀的索引项数量和已分配的直接内存
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stores.forEach((prefix, store) -> {
+            Map<String, Long> storeStats = new LinkedHashMap<>();
+            storeStats.put("entries", (long) store.size());
+            storeStats.put("allocatedBytes", store.allocatedBytes());
+            stats.put(prefix, storeStats);
+        });
+        return stats;
+    }
+
+    /**
+     * 从key中解析出id，前缀不匹配或不是数字id返回null
+     */
+    private static Long parseId(String prefix, String key) {
+        if (!key.startsWith(prefix) || key.length() == prefix.length()) {
+            return null;
+        }
+        long id = 0;
+        for (int i = prefix.length(); i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c < '0' || c > '9' || i - prefix.length() >= 18) {
+                return null;
+            }
+            id = id * 10 + (c - '0');
+        }
+        return id;
+    }
+}
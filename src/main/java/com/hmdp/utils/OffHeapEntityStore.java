@@ -0,0 +1,268 @@
+package com.hmdp.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 堆外实体存储，数据存放在直接内存中，不占用堆空间，不增加GC压力
+ * <p>
+ * 1.数据按段(segment)顺序追加写入，每条记录: [id 8字节][过期时间 8字节][长度 4字节][数据]
+ * 2.索引是 long id -> (段代数 << 32 | 段内偏移) 的开放寻址哈希表，基本类型数组，无装箱
+ * 3.当前段写满后切换到下一个段，段循环使用，复用的段上的旧数据整体淘汰；
+ *   索引中记录了写入时的段代数，代数过旧的索引项即为已淘汰，不需要扫描索引
+ * </p>
+ * @author kaka
+ */
+public class OffHeapEntityStore {
+
+    private static final int HEADER_SIZE = 8 + 8 + 4;
+
+    private final ByteBuffer[] segments;
+    private final int segmentSize;
+
+    /**
+     * 当前写入段的代数，从1开始，段下标 = generation % segments.length
+     */
+    private long generation = 1;
+    private int writeOffset;
+
+    private long[] keys;
+    /**
+     * 0 表示空槽
+     */
+    private long[] values;
+    private int size;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * @param segmentCount 段数量
+     * @param segmentSize 每段字节数
+     */
+    public OffHeapEntityStore(int segmentCount, int segmentSize) {
+        this.segments = new ByteBuffer[segmentCount];
+        this.segmentSize = segmentSize;
+        this.keys = new long[1024];
+        this.values = new long[1024];
+    }
+
+    /**
+     * 写入数据
+     * @param expireAt 本地过期时间戳(ms)
+     * @return 数据超过单段大小时不写入，返回false
+     */
+    public boolean put(long id, long expireAt, byte[] data) {
+        int recordSize = HEADER_SIZE + data.length;
+        if (recordSize > segmentSize) {
+            return false;
+        }
+        lock.writeLock().lock();
+        try {
+            if (writeOffset + recordSize > segmentSize) {
+                // 当前段已满，切换到下一个段，淘汰其中的旧数据
+                generation++;
+                writeOffset = 0;
+            }
+            ByteBuffer segment = segment(generation);
+            segment.putLong(writeOffset, id);
+            segment.putLong(writeOffset + 8, expireAt);
+            segment.putInt(writeOffset + 16, data.length);
+            ByteBuffer dup = segment.duplicate();
+            dup.position(writeOffset + HEADER_SIZE);
+            dup.put(data);
+            indexPut(id, generation << 32 | writeOffset);
+            writeOffset += recordSize;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 读取数据
+     * @return 不存在、已淘汰或已过期返回null
+     */
+    public byte[] get(long id) {
+        lock.readLock().lock();
+        try {
+            int slot = indexOf(id);
+            if (slot < 0) {
+                return null;
+            }
+            long location = values[slot];
+            long gen = location >>> 32;
+            if (isEvicted(gen)) {
+                return null;
+            }
+            int offset = (int) location;
+            ByteBuffer segment = segments[(int) (gen % segments.length)];
+            if (segment.getLong(offset + 8) < System.currentTimeMillis()) {
+                return null;
+            }
+            byte[] data = new byte[segment.getInt(offset + 16)];
+            ByteBuffer dup = segment.duplicate();
+            dup.position(offset + HEADER_SIZE);
+            dup.get(data);
+            return data;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void remove(long id) {
+        lock.writeLock().lock();
+        try {
+            int slot = indexOf(id);
+            if (slot >= 0) {
+                indexRemove(slot);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 索引项数量(包含尚未清理的已淘汰项)
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 已分配的直接内存字节数
+     */
+    public long allocatedBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (ByteBuffer segment : segments) {
+                if (segment != null) {
+                    bytes += segment.capacity();
+                }
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private ByteBuffer segment(long gen) {
+        int index = (int) (gen % segments.length);
+        if (segments[index] == null) {
+            // 用到时才分配
+            segments[index] = ByteBuffer.allocateDirect(segmentSize);
+        }
+        return segments[index];
+    }
+
+    /**
+     * 该代数的段已被复用
+     */
+    private boolean isEvicted(long gen) {
+        return gen <= generation - segments.length;
+    }
+
+    // ---------------- 开放寻址(线性探测)索引 ----------------
+
+    private int indexOf(long id) {
+        int mask = keys.length - 1;
+        int slot = hash(id) & mask;
+        while (values[slot] != 0) {
+            if (keys[slot] == id) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void indexPut(long id, long location) {
+        if ((size + 1) * 2 > keys.length) {
+            resize();
+        }
+        int mask = keys.length - 1;
+        int slot = hash(id) & mask;
+        while (values[slot] != 0) {
+            if (keys[slot] == id) {
+                values[slot] = location;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = id;
+        values[slot] = location;
+        size++;
+    }
+
+    /**
+     * 删除后将后续冲突的项前移，保证探测链不断开
+     */
+    private void indexRemove(int slot) {
+        int mask = keys.length - 1;
+        values[slot] = 0;
+        size--;
+        int i = slot;
+        int j = slot;
+        while (true) {
+            j = (j + 1) & mask;
+            if (values[j] == 0) {
+                return;
+            }
+            int k = hash(keys[j]) & mask;
+            // k 不在 (i, j] 区间内，说明该项可以前移到 i
+            boolean stay = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+            if (!stay) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                values[j] = 0;
+                i = j;
+            }
+        }
+    }
+
+    /**
+     * 扩容，同时丢弃已淘汰的索引项
+     */
+    private void resize() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        int live = 0;
+        for (long value : oldValues) {
+            if (value != 0 && !isEvicted(value >>> 32)) {
+                live++;
+            }
+        }
+        int capacity = oldKeys.length;
+        while (live * 4 > capacity) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        values = new long[capacity];
+        size = 0;
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            long value = oldValues[i];
+            if (value == 0 || isEvicted(value >>> 32)) {
+                continue;
+            }
+            int slot = hash(oldKeys[i]) & mask;
+            while (values[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            values[slot] = value;
+            size++;
+        }
+    }
+
+    private static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
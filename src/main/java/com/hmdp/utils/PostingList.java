@@ -0,0 +1,88 @@
+package com.hmdp.utils;
+
+import java.util.Arrays;
+
+/**
+ * 压缩的倒排列表: 升序的id做差分后按varint编码，相邻id越接近占用越少，通常1~2字节一个id
+ * @author kaka
+ */
+public final class PostingList {
+
+    private PostingList() {
+    }
+
+    /**
+     * @param ids 升序且不重复的id
+     * @param n 有效长度
+     */
+    public static byte[] encode(long[] ids, int n) {
+        byte[] buf = new byte[n * 10];
+        int pos = 0;
+        long prev = 0;
+        for (int i = 0; i < n; i++) {
+            long delta = ids[i] - prev;
+            prev = ids[i];
+            while ((delta & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            buf[pos++] = (byte) delta;
+        }
+        return Arrays.copyOf(buf, pos);
+    }
+
+    public static long[] decode(byte[] data) {
+        long[] ids = new long[Math.max(data.length, 1)];
+        int n = 0;
+        long prev = 0;
+        int pos = 0;
+        while (pos < data.length) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            prev += delta;
+            ids[n++] = prev;
+        }
+        return Arrays.copyOf(ids, n);
+    }
+
+    /**
+     * 加入一个id，已存在时返回原数组
+     */
+    public static byte[] add(byte[] data, long id) {
+        long[] ids = data == null ? new long[0] : decode(data);
+        int index = Arrays.binarySearch(ids, id);
+        if (index >= 0) {
+            return data;
+        }
+        index = -index - 1;
+        long[] newIds = new long[ids.length + 1];
+        System.arraycopy(ids, 0, newIds, 0, index);
+        newIds[index] = id;
+        System.arraycopy(ids, index, newIds, index + 1, ids.length - index);
+        return encode(newIds, newIds.length);
+    }
+
+    /**
+     * 删除一个id，删除后为空时返回null
+     */
+    public static byte[] remove(byte[] data, long id) {
+        long[] ids = decode(data);
+        int index = Arrays.binarySearch(ids, id);
+        if (index < 0) {
+            return data;
+        }
+        if (ids.length == 1) {
+            return null;
+        }
+        long[] newIds = new long[ids.length - 1];
+        System.arraycopy(ids, 0, newIds, 0, index);
+        System.arraycopy(ids, index + 1, newIds, index, ids.length - index - 1);
+        return encode(newIds, newIds.length);
+    }
+}
@@ -11,12 +11,57 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+
+    public static final String CACHE_HOT_KEY = "cache:hot:";
+    public static final Long CACHE_HOT_TTL = 2L;
+    public static final String CACHE_HOT_KEY_WINDOW_KEY = "cache:hotkey:";
+
+    public static final Long CACHE_VOUCHER_TTL = 30L;
+    public static final String CACHE_VOUCHER_KEY = "cache:voucher:shop:";
+
+    public static final String CACHE_SHOP_TYPE_VERSION_KEY = "cache:shop-type:version";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_CACHE_KEY = "lock:";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    public static final String BLOG_LIKE_DELTA_KEY = "blog:like:delta";
+    public static final String BLOG_LIKE_FLUSHING_KEY = "blog:like:delta:flushing";
+    public static final String BLOG_LIKE_COUNT_KEY = "blog:like:count";
+    public static final String BLOG_LIKE_BITMAP_KEY = "blog:like:bm:";
+    public static final String BLOG_LIKE_FIRST_KEY = "blog:like:first:";
+    public static final String BLOG_LIKE_MIGRATED_KEY = "blog:like:migrated";
+    public static final String BLOG_LIKE_REFILL_KEY = "blog:like:refill:";
+    public static final Long BLOG_LIKE_REFILL_TTL = 60L;
+    public static final String LOCK_BLOG_LIKE_MIGRATE_KEY = "lock:blog:like:migrate";
+    public static final String BLOG_BLOOM_KEY = "blog:bloom";
+    public static final String BLOG_BLOOM_READY_KEY = "blog:bloom:ready";
+    public static final String LOCK_BLOG_LIKE_FLUSH_KEY = "lock:blog:like:flush";
+    public static final String BLOG_HOT_KEY = "blog:hot";
+    public static final String BLOG_HOT_TIME_KEY = "blog:hot:time";
+    public static final String BLOG_HOT_VERSION_KEY = "blog:hot:version";
+    public static final String BLOG_HOT_IDS_KEY = "blog:hot:ids:";
+    public static final String BLOG_HOT_PAGES_KEY = "blog:hot:pages:";
+    public static final String LOCK_BLOG_HOT_KEY = "lock:blog:hot";
     public static final String FEED_KEY = "feed:";
+    public static final String FEED_OUTBOX_KEY = "feed:outbox:";
+    public static final String FEED_BIG_AUTHOR_KEY = "feed:big-authors";
+    public static final String FEED_FANOUT_JOB_KEY = "feed:fanout:job:";
+    public static final String FEED_FANOUT_JOBS_KEY = "feed:fanout:jobs";
+    public static final String LOCK_FEED_FANOUT_KEY = "lock:feed:fanout:";
+    public static final String FEED_PREFETCH_KEY = "feed:prefetch:";
+    public static final String FEED_PREFETCH_VERSION_KEY = "feed:prefetch:version:";
+    public static final String FOLLOWS_KEY = "follows:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String SHOP_GEO_CURSOR_KEY = "shop:geo:cursor:";
+    public static final String SHOP_INDEX_TOPIC = "shop:index:changed";
+    public static final Long SHOP_GEO_CURSOR_TTL = 60L;
     public static final String USER_SIGN_KEY = "sign:";
 }
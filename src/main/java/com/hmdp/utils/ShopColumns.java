@@ -0,0 +1,301 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.ShopFilter;
+import com.hmdp.entity.Shop;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 一个店铺类型的列式属性表，不可变，修改时生成新的实例
+ * <p>
+ * 1.每个字段一个基本类型数组，下标即行号
+ * 2.营业时间预先解析为一天1440分钟的位图，每家店铺占 {@link #WORDS} 个long，判断是否营业只需一次位运算
+ * 3.同时持有按坐标建立的 {@link GeoGrid}，附近查询时只对候选网格中的行判断筛选条件，不扫描整张表
+ * 4.id -> 行号的映射，修改、删除时直接定位
+ * </p>
+ * @author kaka
+ */
+public class ShopColumns {
+
+    private static final int MINUTES_OF_DAY = 24 * 60;
+    private static final int WORDS = (MINUTES_OF_DAY + 63) / 64;
+
+    /**
+     * 营业时间段，例如 10:00-22:00、11:30-次日02:00
+     */
+    private static final Pattern TIME_RANGE = Pattern.compile("(\\d{1,2})[:：](\\d{2})\\s*[-~至]\\s*(?:次日)?(\\d{1,2})[:：](\\d{2})");
+
+    private final double cellSize;
+
+    private final long[] ids;
+    private final double[] xs;
+    private final double[] ys;
+    /**
+     * 均价，未知为-1
+     */
+    private final long[] avgPrices;
+    private final int[] scores;
+    private final int[] solds;
+    private final long[] openBits;
+
+    private final GeoGrid grid;
+
+    /**
+     * id -> 行号
+     */
+    private final Map<Long, Integer> rowIndex;
+
+    private ShopColumns(double cellSize, long[] ids, double[] xs, double[] ys,
+                        long[] avgPrices, int[] scores, int[] solds, long[] openBits) {
+        this.cellSize = cellSize;
+        this.ids = ids;
+        this.xs = xs;
+        this.ys = ys;
+        this.avgPrices = avgPrices;
+        this.scores = scores;
+        this.solds = solds;
+        this.openBits = openBits;
+        this.grid = new GeoGrid(cellSize, ids, xs, ys);
+        this.rowIndex = new HashMap<>(ids.length * 2);
+        for (int i = 0; i < ids.length; i++) {
+            rowIndex.put(ids[i], i);
+        }
+    }
+
+    /**
+     * @param shops 需要包含 id x y avgPrice score sold openHours
+     */
+    public static ShopColumns of(double cellSize, List<Shop> shops) {
+        int n = shops.size();
+        long[] ids = new long[n];
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        long[] avgPrices = new long[n];
+        int[] scores = new int[n];
+        int[] solds = new int[n];
+        long[] openBits = new long[n * WORDS];
+        for (int i = 0; i < n; i++) {
+            setRow(shops.get(i), i, ids, xs, ys, avgPrices, scores, solds, openBits);
+        }
+        return new ShopColumns(cellSize, ids, xs, ys, avgPrices, scores, solds, openBits);
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * 新增或替换一家店铺
+     */
+    public ShopColumns with(Shop shop) {
+        int row = rowOf(shop.getId());
+        int n = row < 0 ? ids.length + 1 : ids.length;
+        if (row < 0) {
+            row = ids.length;
+        }
+        long[] newIds = Arrays.copyOf(ids, n);
+        double[] newXs = Arrays.copyOf(xs, n);
+        double[] newYs = Arrays.copyOf(ys, n);
+        long[] newAvgPrices = Arrays.copyOf(avgPrices, n);
+        int[] newScores = Arrays.copyOf(scores, n);
+        int[] newSolds = Arrays.copyOf(solds, n);
+        long[] newOpenBits = Arrays.copyOf(openBits, n * WORDS);
+        Arrays.fill(newOpenBits, row * WORDS, (row + 1) * WORDS, 0L);
+        setRow(shop, row, newIds, newXs, newYs, newAvgPrices, newScores, newSolds, newOpenBits);
+        return new ShopColumns(cellSize, newIds, newXs, newYs, newAvgPrices, newScores, newSolds, newOpenBits);
+    }
+
+    /**
+     * 删除一家店铺，不存在时返回自身
+     */
+    public ShopColumns without(long id) {
+        int row = rowOf(id);
+        if (row < 0) {
+            return this;
+        }
+        return new ShopColumns(cellSize, remove(ids, row), remove(xs, row), remove(ys, row),
+                remove(avgPrices, row), remove(scores, row), remove(solds, row), removeWords(openBits, row));
+    }
+
+    /**
+     * 筛选条件对应的行过滤器，只在网格查询遇到的候选行上调用
+     * @param minuteOfDay 当前是一天中的第几分钟，用于判断是否营业
+     * @return 没有筛选条件时返回null
+     */
+    public IntPredicate matcher(ShopFilter filter, int minuteOfDay) {
+        if (!filter.hasCondition()) {
+            return null;
+        }
+        long minPrice = filter.getMinPrice() == null ? Long.MIN_VALUE : filter.getMinPrice();
+        long maxPrice = filter.getMaxPrice() == null ? Long.MAX_VALUE : filter.getMaxPrice();
+        boolean hasMaxPrice = filter.getMaxPrice() != null;
+        int minScore = filter.getMinScore() == null ? Integer.MIN_VALUE : filter.getMinScore();
+        boolean openNow = Boolean.TRUE.equals(filter.getOpenNow());
+        int word = minuteOfDay >>> 6;
+        long mask = 1L << (minuteOfDay & 63);
+        return row -> avgPrices[row] >= minPrice
+                // 均价未知的不满足最高均价
+                && (!hasMaxPrice || (avgPrices[row] >= 0 && avgPrices[row] <= maxPrice))
+                && scores[row] >= minScore
+                && (!openNow || (openBits[row * WORDS + word] & mask) != 0);
+    }
+
+    /**
+     * 查询附近满足条件的店铺
+     * 按距离排序时结果按 (距离, id) 升序，支持游标；按其他字段排序时只支持skip分页
+     */
+    public GeoGrid.Hits search(double x, double y, double radius, ShopFilter filter, int minuteOfDay,
+                               double afterDistance, long afterId, int skip, int limit) {
+        IntPredicate predicate = matcher(filter, minuteOfDay);
+        if (filter.sortByDistance()) {
+            return grid.search(x, y, radius, afterDistance, afterId, skip, limit, predicate);
+        }
+        GeoGrid.Hits hits = grid.within(x, y, radius, predicate);
+        Integer[] order = new Integer[hits.size];
+        for (int i = 0; i < hits.size; i++) {
+            order[i] = i;
+        }
+        String sortBy = filter.getSortBy();
+        Arrays.sort(order, (a, b) -> {
+            int ra = hits.rows[a];
+            int rb = hits.rows[b];
+            int c;
+            if (ShopFilter.SORT_SCORE.equals(sortBy)) {
+                c = Integer.compare(scores[rb], scores[ra]);
+            } else if (ShopFilter.SORT_SOLD.equals(sortBy)) {
+                c = Integer.compare(solds[rb], solds[ra]);
+            } else {
+                // 均价未知的排在最后
+                c = Long.compare(avgPrices[ra] < 0 ? Long.MAX_VALUE : avgPrices[ra],
+                        avgPrices[rb] < 0 ? Long.MAX_VALUE : avgPrices[rb]);
+            }
+            if (c != 0) {
+                return c;
+            }
+            c = Double.compare(hits.distances[a], hits.distances[b]);
+            return c != 0 ? c : Long.compare(hits.ids[a], hits.ids[b]);
+        });
+        int from = Math.min(skip, hits.size);
+        int to = Math.min(skip + limit, hits.size);
+        long[] pageIds = new long[to - from];
+        double[] pageDistances = new double[to - from];
+        int[] pageRows = new int[to - from];
+        for (int i = from; i < to; i++) {
+            int hit = order[i];
+            pageIds[i - from] = hits.ids[hit];
+            pageDistances[i - from] = hits.distances[hit];
+            pageRows[i - from] = hits.rows[hit];
+        }
+        return new GeoGrid.Hits(pageIds, pageDistances, pageRows, to - from);
+    }
+
+    /**
+     * 单个店铺是否满足条件，用于没有列式索引时对查询结果做过滤
+     */
+    public static boolean matches(Shop shop, ShopFilter filter, int minuteOfDay) {
+        long avgPrice = shop.getAvgPrice() == null ? -1 : shop.getAvgPrice();
+        if (filter.getMinPrice() != null && avgPrice < filter.getMinPrice()) {
+            return false;
+        }
+        if (filter.getMaxPrice() != null && (avgPrice < 0 || avgPrice > filter.getMaxPrice())) {
+            return false;
+        }
+        if (filter.getMinScore() != null && (shop.getScore() == null || shop.getScore() < filter.getMinScore())) {
+            return false;
+        }
+        if (Boolean.TRUE.equals(filter.getOpenNow())) {
+            long[] bits = new long[WORDS];
+            parseOpenHours(shop.getOpenHours(), bits, 0);
+            return (bits[minuteOfDay >>> 6] & (1L << (minuteOfDay & 63))) != 0;
+        }
+        return true;
+    }
+
+    private int rowOf(long id) {
+        Integer row = rowIndex.get(id);
+        return row == null ? -1 : row;
+    }
+
+    private static void setRow(Shop shop, int row, long[] ids, double[] xs, double[] ys,
+                               long[] avgPrices, int[] scores, int[] solds, long[] openBits) {
+        ids[row] = shop.getId();
+        xs[row] = shop.getX();
+        ys[row] = shop.getY();
+        avgPrices[row] = shop.getAvgPrice() == null ? -1 : shop.getAvgPrice();
+        scores[row] = shop.getScore() == null ? 0 : shop.getScore();
+        solds[row] = shop.getSold() == null ? 0 : shop.getSold();
+        parseOpenHours(shop.getOpenHours(), openBits, row * WORDS);
+    }
+
+    /**
+     * 解析营业时间到分钟位图，跨过零点的时间段拆成两段；无法解析的视为不营业
+     */
+    static void parseOpenHours(String openHours, long[] bits, int offset) {
+        if (openHours == null) {
+            return;
+        }
+        if (openHours.contains("24小时") || openHours.contains("全天")) {
+            setBits(bits, offset, 0, MINUTES_OF_DAY);
+            return;
+        }
+        Matcher matcher = TIME_RANGE.matcher(openHours);
+        while (matcher.find()) {
+            int start = Integer.parseInt(matcher.group(1)) * 60 + Integer.parseInt(matcher.group(2));
+            int end = Integer.parseInt(matcher.group(3)) * 60 + Integer.parseInt(matcher.group(4));
+            if (start > MINUTES_OF_DAY || end > MINUTES_OF_DAY) {
+                continue;
+            }
+            if (start == end) {
+                setBits(bits, offset, 0, MINUTES_OF_DAY);
+            } else if (start < end) {
+                setBits(bits, offset, start, end);
+            } else {
+                setBits(bits, offset, start, MINUTES_OF_DAY);
+                setBits(bits, offset, 0, end);
+            }
+        }
+    }
+
+    /**
+     * 设置 [from, to) 分钟
+     */
+    private static void setBits(long[] bits, int offset, int from, int to) {
+        for (int m = from; m < to; m++) {
+            bits[offset + (m >>> 6)] |= 1L << (m & 63);
+        }
+    }
+
+    private static long[] remove(long[] array, int index) {
+        long[] result = new long[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+        return result;
+    }
+
+    private static double[] remove(double[] array, int index) {
+        double[] result = new double[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+        return result;
+    }
+
+    private static int[] remove(int[] array, int index) {
+        int[] result = new int[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+        return result;
+    }
+
+    private static long[] removeWords(long[] array, int row) {
+        long[] result = new long[array.length - WORDS];
+        System.arraycopy(array, 0, result, 0, row * WORDS);
+        System.arraycopy(array, (row + 1) * WORDS, result, row * WORDS, array.length - (row + 1) * WORDS);
+        return result;
+    }
+}
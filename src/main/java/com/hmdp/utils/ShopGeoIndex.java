@@ -0,0 +1,131 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.ShopFilter;
+import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalTime;
+import java.util.*;
+
+/**
+ * 店铺的内存地理和属性索引，每个店铺类型一个 {@link ShopColumns}
+ * 启动时从数据库全量加载，店铺新增、修改后增量更新；未加载完成前调用方应回退到redis GEO
+ * @author kaka
+ */
+@Slf4j
+@Component
+public class ShopGeoIndex {
+
+    @Value("${hmdp.shop.geo-index.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 网格边长(度)，0.01度约1.1km
+     */
+    @Value("${hmdp.shop.geo-index.cell-size:0.01}")
+    private double cellSize;
+
+    /**
+     * typeId -> 索引，整体替换，读取无锁
+     */
+    private volatile Map<Long, ShopColumns> tables = Collections.emptyMap();
+
+    private volatile boolean loaded;
+
+    /**
+     * 店铺id -> typeId，修改时只复制涉及的类型的表，只在持有锁时读写
+     */
+    private Map<Long, Long> shopTypes = new HashMap<>();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isReady() {
+        return enabled && loaded;
+    }
+
+    /**
+     * 全量加载
+     * @param shops 需要包含 id x y typeId avgPrice score sold openHours
+     */
+    public synchronized void load(List<Shop> shops) {
+        Map<Long, List<Shop>> groupMap = new HashMap<>();
+        Map<Long, Long> newShopTypes = new HashMap<>(shops.size() * 2);
+        for (Shop shop : shops) {
+            groupMap.computeIfAbsent(shop.getTypeId(), k -> new ArrayList<>()).add(shop);
+            newShopTypes.put(shop.getId(), shop.getTypeId());
+        }
+        Map<Long, ShopColumns> newTables = new HashMap<>(groupMap.size());
+        groupMap.forEach((typeId, typeShops) -> newTables.put(typeId, ShopColumns.of(cellSize, typeShops)));
+        tables = newTables;
+        shopTypes = newShopTypes;
+        loaded = true;
+        log.info("店铺地理索引加载完成, {} 个类型, {} 家店铺", newTables.size(), shops.size());
+    }
+
+    /**
+     * 新增或更新店铺，类型变化时从原类型中移除
+     * 只复制原类型和新类型的表，其他类型的表原样共享
+     */
+    public synchronized void put(Shop shop) {
+        if (!loaded) {
+            return;
+        }
+        long id = shop.getId();
+        Long typeId = shop.getTypeId();
+        Map<Long, ShopColumns> newTables = new HashMap<>(tables);
+        Long oldTypeId = shopTypes.put(id, typeId);
+        if (oldTypeId != null && !oldTypeId.equals(typeId)) {
+            removeFrom(newTables, oldTypeId, id);
+        }
+        ShopColumns table = newTables.get(typeId);
+        newTables.put(typeId, table == null
+                ? ShopColumns.of(cellSize, Collections.singletonList(shop))
+                : table.with(shop));
+        tables = newTables;
+    }
+
+    public synchronized void remove(long id) {
+        if (!loaded) {
+            return;
+        }
+        Long typeId = shopTypes.remove(id);
+        if (typeId == null) {
+            return;
+        }
+        Map<Long, ShopColumns> newTables = new HashMap<>(tables);
+        removeFrom(newTables, typeId, id);
+        tables = newTables;
+    }
+
+    private static void removeFrom(Map<Long, ShopColumns> tables, Long typeId, long id) {
+        ShopColumns table = tables.get(typeId);
+        if (table != null) {
+            tables.put(typeId, table.without(id));
+        }
+    }
+
+    /**
+     * 查询附近满足条件的店铺
+     * @see ShopColumns#search
+     */
+    public GeoGrid.Hits search(long typeId, double x, double y, double radius, ShopFilter filter,
+                               double afterDistance, long afterId, int skip, int limit) {
+        ShopColumns table = tables.get(typeId);
+        if (table == null) {
+            table = ShopColumns.of(cellSize, Collections.emptyList());
+        }
+        return table.search(x, y, radius, filter, minuteOfDay(), afterDistance, afterId, skip, limit);
+    }
+
+    /**
+     * 当前是一天中的第几分钟
+     */
+    public static int minuteOfDay() {
+        LocalTime now = LocalTime.now();
+        return now.getHour() * 60 + now.getMinute();
+    }
+}
@@ -0,0 +1,434 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 店铺名称和商圈的n-gram倒排索引
+ * <p>
+ * 1.中文没有空格分词，按字切分: 每个连续的文字/数字片段取所有单字和相邻两字(bigram)作为词项
+ * 2.查询词长度为1时查单字的倒排列表，否则取查询词的所有bigram求交集，再用原文校验是否真正包含查询词
+ * 3.倒排列表用 {@link PostingList} 压缩存储
+ * 4.排序: 名称以查询词开头 > 名称包含 > 只有商圈包含，同一档内按销量、评分倒序
+ * </p>
+ * @author kaka
+ */
+@Slf4j
+@Component
+public class ShopNameIndex {
+
+    @Value("${hmdp.shop.name-index.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 词项 -> 压缩的倒排列表
+     */
+    private Map<String, byte[]> postings = new HashMap<>();
+
+    /**
+     * 店铺id -> 参与检索和排序的字段
+     */
+    private Map<Long, Doc> docs = new HashMap<>();
+
+    private volatile boolean loaded;
+
+    /**
+     * 正在进行的全量重建数
+     */
+    private int rebuilding;
+
+    /**
+     * 重建期间的新增、修改(店铺)和删除(null)，重建完成替换索引后重放，避免丢失
+     */
+    private Map<Long, Shop> changes = new LinkedHashMap<>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isReady() {
+        return enabled && loaded;
+    }
+
+    /**
+     * 全量重建用的构建器，店铺按id升序加入时不需要排序
+     */
+    public Builder builder() {
+        lock.writeLock().lock();
+        try {
+            rebuilding++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return new Builder();
+    }
+
+    /**
+     * 新增或更新店铺
+     * @param shop 需要包含 id name area sold score
+     */
+    public void put(Shop shop) {
+        lock.writeLock().lock();
+        try {
+            if (rebuilding > 0) {
+                changes.put(shop.getId(), shop);
+            }
+            if (loaded) {
+                putDoc(new Doc(shop));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(long id) {
+        lock.writeLock().lock();
+        try {
+            if (rebuilding > 0) {
+                changes.put(id, null);
+            }
+            if (loaded) {
+                removeDoc(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 需要持有写锁
+     */
+    private void putDoc(Doc doc) {
+        Doc old = docs.put(doc.id, doc);
+        Set<String> oldTerms = old == null ? Collections.emptySet() : old.terms();
+        Set<String> newTerms = doc.terms();
+        for (String term : oldTerms) {
+            if (!newTerms.contains(term)) {
+                removePosting(term, doc.id);
+            }
+        }
+        for (String term : newTerms) {
+            if (!oldTerms.contains(term)) {
+                postings.put(term, PostingList.add(postings.get(term), doc.id));
+            }
+        }
+    }
+
+    /**
+     * 需要持有写锁
+     */
+    private void endRebuild() {
+        if (--rebuilding == 0) {
+            changes = new LinkedHashMap<>();
+        }
+    }
+
+    /**
+     * 需要持有写锁
+     */
+    private void removeDoc(long id) {
+        Doc old = docs.remove(id);
+        if (old != null) {
+            for (String term : old.terms()) {
+                removePosting(term, id);
+            }
+        }
+    }
+
+    /**
+     * 搜索店铺
+     * @param keyword 关键字，空格分隔的多个词需要同时命中
+     * @param skip 跳过的条数，不能为负数
+     * @return 按相关度、销量、评分排序后的当前页店铺id
+     */
+    public List<Long> search(String keyword, int skip, int limit) {
+        if (skip < 0 || limit < 0) {
+            throw new IllegalArgumentException("skip和limit不能为负数");
+        }
+        List<String> words = segments(normalize(keyword));
+        if (words.isEmpty()) {
+            return Collections.emptyList();
+        }
+        String first = words.get(0);
+        List<Doc> matched = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (long id : candidates(words)) {
+                Doc doc = docs.get(id);
+                if (doc != null && doc.containsAll(words)) {
+                    matched.add(doc);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        matched.sort(Comparator.comparingInt((Doc d) -> d.tier(first))
+                .thenComparing(Comparator.comparingInt((Doc d) -> d.sold).reversed())
+                .thenComparing(Comparator.comparingInt((Doc d) -> d.score).reversed())
+                .thenComparingLong(d -> d.id));
+        List<Long> ids = new ArrayList<>(Math.max(0, Math.min(limit, matched.size() - skip)));
+        for (int i = skip; i < matched.size() && i < skip + limit; i++) {
+            ids.add(matched.get(i).id);
+        }
+        return ids;
+    }
+
+    /**
+     * 搜索框联想，返回最相关的店铺名称
+     */
+    public List<String> suggest(String prefix, int limit) {
+        List<Long> ids = search(prefix, 0, limit * 2);
+        Set<String> names = new LinkedHashSet<>();
+        lock.readLock().lock();
+        try {
+            for (Long id : ids) {
+                Doc doc = docs.get(id);
+                if (doc != null && doc.name != null) {
+                    names.add(doc.name);
+                }
+                if (names.size() == limit) {
+                    break;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * 所有词项倒排列表的交集，从最短的列表开始
+     */
+    private long[] candidates(List<String> words) {
+        Set<String> terms = new HashSet<>();
+        for (String word : words) {
+            terms.addAll(queryTerms(word));
+        }
+        List<byte[]> lists = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            byte[] posting = postings.get(term);
+            if (posting == null) {
+                return new long[0];
+            }
+            lists.add(posting);
+        }
+        lists.sort(Comparator.comparingInt(p -> p.length));
+        long[] result = PostingList.decode(lists.get(0));
+        for (int i = 1; i < lists.size() && result.length > 0; i++) {
+            long[] other = PostingList.decode(lists.get(i));
+            long[] intersection = new long[result.length];
+            int n = 0;
+            for (long id : result) {
+                if (Arrays.binarySearch(other, id) >= 0) {
+                    intersection[n++] = id;
+                }
+            }
+            result = Arrays.copyOf(intersection, n);
+        }
+        return result;
+    }
+
+    private void removePosting(String term, long id) {
+        byte[] posting = postings.get(term);
+        if (posting == null) {
+            return;
+        }
+        byte[] updated = PostingList.remove(posting, id);
+        if (updated == null) {
+            postings.remove(term);
+        } else {
+            postings.put(term, updated);
+        }
+    }
+
+    /**
+     * 查询词的词项: 单字查单字，否则查所有bigram
+     */
+    private static Set<String> queryTerms(String word) {
+        Set<String> terms = new HashSet<>();
+        if (word.length() == 1) {
+            terms.add(word);
+            return terms;
+        }
+        for (int i = 0; i + 1 < word.length(); i++) {
+            terms.add(word.substring(i, i + 2));
+        }
+        return terms;
+    }
+
+    /**
+     * 文本的词项: 每个片段的所有单字和bigram
+     */
+    private static void addTerms(String text, Set<String> terms) {
+        for (String segment : segments(normalize(text))) {
+            for (int i = 0; i < segment.length(); i++) {
+                terms.add(segment.substring(i, i + 1));
+                if (i + 1 < segment.length()) {
+                    terms.add(segment.substring(i, i + 2));
+                }
+            }
+        }
+    }
+
+    private static String normalize(String text) {
+        return text == null ? "" : text.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * 按非文字、非数字字符切分
+     */
+    private static List<String> segments(String text) {
+        List<String> segments = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                segments.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+        return segments;
+    }
+
+    private static class Doc {
+        private final long id;
+        private final String name;
+        private final String area;
+        private final String normalizedName;
+        private final String normalizedArea;
+        private final int sold;
+        private final int score;
+
+        private Doc(Shop shop) {
+            this.id = shop.getId();
+            this.name = shop.getName();
+            this.area = shop.getArea();
+            this.normalizedName = normalize(shop.getName());
+            this.normalizedArea = normalize(shop.getArea());
+            this.sold = shop.getSold() == null ? 0 : shop.getSold();
+            this.score = shop.getScore() == null ? 0 : shop.getScore();
+        }
+
+        private Set<String> terms() {
+            Set<String> terms = new HashSet<>();
+            addTerms(name, terms);
+            addTerms(area, terms);
+            return terms;
+        }
+
+        private boolean containsAll(List<String> words) {
+            for (String word : words) {
+                if (!normalizedName.contains(word) && !normalizedArea.contains(word)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 相关度档位，越小越相关
+         */
+        private int tier(String word) {
+            if (normalizedName.startsWith(word)) {
+                return 0;
+            }
+            return normalizedName.contains(word) ? 1 : 2;
+        }
+    }
+
+    /**
+     * 全量构建，完成后整体替换，构建过程中查询仍使用旧索引
+     * 必须以 {@link #commit} 或 {@link #abort} 结束，否则重建期间的修改会一直保留
+     */
+    public class Builder {
+        private final Map<String, long[]> lists = new HashMap<>();
+        private final Map<String, Integer> sizes = new HashMap<>();
+        private final Map<Long, Doc> newDocs = new HashMap<>();
+        private long lastId = Long.MIN_VALUE;
+        private boolean sorted = true;
+        private boolean finished;
+
+        /**
+         * @param shop 需要包含 id name area sold score
+         */
+        public void add(Shop shop) {
+            Doc doc = new Doc(shop);
+            newDocs.put(doc.id, doc);
+            sorted &= doc.id > lastId;
+            lastId = doc.id;
+            for (String term : doc.terms()) {
+                long[] list = lists.get(term);
+                int size = sizes.getOrDefault(term, 0);
+                if (list == null) {
+                    list = new long[4];
+                } else if (size == list.length) {
+                    list = Arrays.copyOf(list, size << 1);
+                }
+                list[size] = doc.id;
+                lists.put(term, list);
+                sizes.put(term, size + 1);
+            }
+        }
+
+        public void commit() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            Map<String, byte[]> newPostings = new HashMap<>(lists.size() * 2);
+            lists.forEach((term, list) -> {
+                int size = sizes.get(term);
+                if (!sorted) {
+                    Arrays.sort(list, 0, size);
+                }
+                newPostings.put(term, PostingList.encode(list, size));
+            });
+            int replayed;
+            lock.writeLock().lock();
+            try {
+                postings = newPostings;
+                docs = newDocs;
+                loaded = true;
+                // 构建期间的修改可能没有被读到，重放到新索引上，重放是幂等的
+                replayed = changes.size();
+                changes.forEach((id, shop) -> {
+                    if (shop == null) {
+                        removeDoc(id);
+                    } else {
+                        putDoc(new Doc(shop));
+                    }
+                });
+                endRebuild();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            log.info("店铺名称索引构建完成, {} 家店铺, {} 个词项, 重放 {} 次修改", newDocs.size(), newPostings.size(), replayed);
+        }
+
+        /**
+         * 构建失败时放弃，继续使用旧索引
+         */
+        public void abort() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            lock.writeLock().lock();
+            try {
+                endRebuild();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+-- 写入逻辑过期数据，已有的数据版本更新时不覆盖
+-- 1.参数列表
+-- 1.1.缓存key
+local key = KEYS[1]
+-- 1.2.要写入的数据
+local value = ARGV[1]
+-- 1.3.要写入的数据版本(更新时间的毫秒数)
+local version = tonumber(ARGV[2])
+
+-- 2.读取已有数据头部的版本，没有版本(旧数据、空值)时直接覆盖
+local current = redis.call('get', key)
+if (current) then
+    local currentVersion = string.match(current, '^{"expireTime":%d+,"delta":%d+,"version":(%d+),"data":')
+    if (currentVersion and tonumber(currentVersion) > version) then
+        return 0
+    end
+end
+-- 3.写入
+redis.call('set', key, value)
+return 1
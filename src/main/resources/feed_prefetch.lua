@@ -0,0 +1,23 @@
+-- 写入预读的关注流，预读期间点赞状态发生变化时放弃写入
+-- 1.参数列表
+-- 1.1.预读缓存key
+local key = KEYS[1]
+-- 1.2.点赞版本号key
+local versionKey = KEYS[2]
+-- 1.3.开始预读时的版本号，没有版本号时为空字符串
+local version = ARGV[1]
+-- 1.4.预读页的游标
+local cursor = ARGV[2]
+-- 1.5.预读页，没有下一页时为空字符串
+local page = ARGV[3]
+-- 1.6.保留时间(秒)
+local ttl = tonumber(ARGV[4])
+
+-- 2.预读期间用户点赞或取消点赞，页中的点赞状态已经过时
+if ((redis.call('get', versionKey) or '') ~= version) then
+    return 0
+end
+-- 3.写入预读页
+redis.call('hset', key, 'cursor', cursor, 'page', page)
+redis.call('expire', key, ttl)
+return 1
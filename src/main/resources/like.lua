@@ -0,0 +1,69 @@
+-- 1.参数列表
+-- 1.1.点赞用户位图分片key
+local bitmapKey = KEYS[1]
+-- 1.2.最早点赞用户key
+local firstKey = KEYS[2]
+-- 1.3.迁移前的点赞用户集合key
+local legacyKey = KEYS[3]
+-- 1.4.待写入数据库的点赞数变化key
+local deltaKey = KEYS[4]
+-- 1.5.热门笔记排行key
+local hotKey = KEYS[5]
+-- 1.6.热门笔记发布时间key
+local hotTimeKey = KEYS[6]
+-- 1.7.点赞数key
+local countKey = KEYS[7]
+-- 1.8.用户id
+local userId = ARGV[1]
+-- 1.9.点赞时间(ms)
+local now = ARGV[2]
+-- 1.10.笔记id
+local blogId = ARGV[3]
+-- 1.11.热度衰减系数
+local gravity = tonumber(ARGV[4])
+-- 1.12.用户在位图分片中的位置
+local offset = tonumber(ARGV[5])
+-- 1.13.最早点赞用户保留的人数
+local firstSize = tonumber(ARGV[6])
+
+-- 2.点赞数变化: 累加到待写入数据库的变化中，已初始化的点赞数同时更新
+local function incrLiked(sign)
+    redis.call('hincrby', deltaKey, blogId, sign)
+    if (redis.call('hexists', countKey, blogId) == 1) then
+        redis.call('hincrby', countKey, blogId, sign)
+    end
+end
+
+-- 3.热度增量: 一个赞的热度随发布时间衰减 1 / (小时数 + 2) ^ gravity，只更新统计范围内的笔记
+-- 已被裁剪出排行的笔记不再加回，等下次重算时按真实热度决定是否进入排行
+local function incrHot(sign)
+    if (not redis.call('zscore', hotKey, blogId)) then
+        return
+    end
+    local createTime = redis.call('zscore', hotTimeKey, blogId)
+    if (not createTime) then
+        return
+    end
+    local hours = (tonumber(now) / 1000 - tonumber(createTime)) / 3600
+    if (hours < 0) then
+        hours = 0
+    end
+    redis.call('zincrby', hotKey, sign / math.pow(hours + 2, gravity), blogId)
+end
+
+-- 4.已点赞，取消点赞，点赞数-1; 还未迁移的点赞记录在旧集合中
+if (redis.call('getbit', bitmapKey, offset) == 1 or redis.call('zscore', legacyKey, userId)) then
+    redis.call('setbit', bitmapKey, offset, 0)
+    redis.call('zrem', legacyKey, userId)
+    redis.call('zrem', firstKey, userId)
+    incrLiked(-1)
+    incrHot(-1)
+    return 0
+end
+-- 5.未点赞，点赞，点赞数+1; 最早点赞用户只保留时间最早的 firstSize 个
+redis.call('setbit', bitmapKey, offset, 1)
+redis.call('zadd', firstKey, now, userId)
+redis.call('zremrangebyrank', firstKey, firstSize, -1)
+incrLiked(1)
+incrHot(1)
+return 1
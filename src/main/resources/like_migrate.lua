@@ -0,0 +1,25 @@
+-- 把一批点赞记录从旧的集合移到位图和最早点赞用户中
+-- 1.参数列表
+-- 1.1.旧的点赞用户集合key
+local legacyKey = KEYS[1]
+-- 1.2.最早点赞用户key
+local firstKey = KEYS[2]
+-- 1.3.最早点赞用户保留的人数
+local firstSize = tonumber(ARGV[1])
+-- 1.4.第i个用户: ARGV[i * 2] 用户id，ARGV[i * 2 + 1] 在位图分片中的位置，KEYS[i + 2] 所在的位图分片
+
+-- 2.逐个迁移，读取这一批之后取消了点赞的用户已经不在旧集合中，跳过
+local moved = 0
+for i = 1, #KEYS - 2 do
+    local userId = ARGV[i * 2]
+    local score = redis.call('zscore', legacyKey, userId)
+    if (score) then
+        redis.call('setbit', KEYS[i + 2], tonumber(ARGV[i * 2 + 1]), 1)
+        redis.call('zadd', firstKey, score, userId)
+        redis.call('zrem', legacyKey, userId)
+        moved = moved + 1
+    end
+end
+-- 3.迁移过来的点赞时间可能早于迁移期间的新点赞，重新裁剪
+redis.call('zremrangebyrank', firstKey, firstSize, -1)
+return moved
@@ -0,0 +1,19 @@
+-- 从点赞位图中补充最早点赞用户
+-- 1.参数列表
+-- 1.1.最早点赞用户key
+local firstKey = KEYS[1]
+-- 1.2.最早点赞用户保留的人数
+local firstSize = tonumber(ARGV[1])
+-- 1.3.补充用户的分数: 真实点赞时间已经无法得知，排在现有用户之后
+local score = ARGV[2]
+-- 1.4.第i个用户: ARGV[i * 2 + 1] 用户id，ARGV[i * 2 + 2] 在位图分片中的位置，KEYS[i + 1] 所在的位图分片
+
+-- 2.读取位图之后取消了点赞的用户不再补充，已经在集合中的不覆盖点赞时间
+local added = 0
+for i = 1, #KEYS - 1 do
+    if (redis.call('getbit', KEYS[i + 1], tonumber(ARGV[i * 2 + 2])) == 1) then
+        added = added + redis.call('zadd', firstKey, 'NX', score, ARGV[i * 2 + 1])
+    end
+end
+redis.call('zremrangebyrank', firstKey, firstSize, -1)
+return added
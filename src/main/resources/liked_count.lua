@@ -0,0 +1,16 @@
+-- 1.参数列表
+-- 1.1.点赞数key
+local countKey = KEYS[1]
+-- 1.2.待写入数据库的点赞数变化key
+local deltaKey = KEYS[2]
+-- 1.3.正在写入数据库的点赞数变化key
+local flushingKey = KEYS[3]
+-- 1.4.笔记id
+local blogId = ARGV[1]
+-- 1.5.数据库中的点赞数
+local dbLiked = tonumber(ARGV[2])
+
+-- 2.点赞数 = 数据库中的点赞数 + 还未写入数据库的变化，已经初始化过的不覆盖
+local liked = dbLiked + tonumber(redis.call('hget', deltaKey, blogId) or 0) + tonumber(redis.call('hget', flushingKey, blogId) or 0)
+redis.call('hsetnx', countKey, blogId, liked)
+return liked
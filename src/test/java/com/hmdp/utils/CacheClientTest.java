@@ -0,0 +1,90 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.date.LocalDateTimeUtil;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheClientTest {
+
+    @Test
+    void parseLogicalExpireHeader() {
+        String json = "{\"expireTime\":1700000000000,\"delta\":35,\"data\":{\"id\":1,\"name\":\"a\"}}";
+        int start = CacheClient.dataStart(json);
+        assertTrue(start > 0);
+        assertEquals("{\"id\":1,\"name\":\"a\"}", json.substring(start, json.length() - 1));
+        assertEquals(1700000000000L, CacheClient.expireAt(json));
+        assertEquals(35L, CacheClient.delta(json));
+    }
+
+    @Test
+    void parseHeaderWithVersion() {
+        String json = "{\"expireTime\":1700000000000,\"delta\":35,\"version\":1690000000000,\"data\":{\"id\":1}}";
+        int start = CacheClient.dataStart(json);
+        assertEquals("{\"id\":1}", json.substring(start, json.length() - 1));
+        assertEquals(1700000000000L, CacheClient.expireAt(json));
+        assertEquals(35L, CacheClient.delta(json));
+        assertEquals(-1, CacheClient.dataStart("{\"expireTime\":1,\"delta\":1,\"version\":,\"data\":{}}"));
+    }
+
+    @Test
+    void versionFromUpdateTime() {
+        Shop shop = new Shop();
+        assertNull(CacheClient.versionOf(shop));
+        LocalDateTime updateTime = LocalDateTime.of(2023, 11, 15, 10, 0);
+        shop.setUpdateTime(updateTime);
+        assertEquals(LocalDateTimeUtil.toEpochMilli(updateTime), CacheClient.versionOf(shop));
+        // 没有updateTime的数据不做版本比较
+        assertNull(CacheClient.versionOf(Collections.emptyList()));
+        assertNull(CacheClient.versionOf(null));
+    }
+
+    @Test
+    void rejectOtherFormats() {
+        assertEquals(-1, CacheClient.dataStart(null));
+        assertEquals(-1, CacheClient.dataStart(""));
+        // RedisData旧格式
+        assertEquals(-1, CacheClient.dataStart("{\"data\":{},\"expireTime\":\"2021-12-22 10:00:00\"}"));
+        assertEquals(-1, CacheClient.dataStart("{\"expireTime\":,\"delta\":1,\"data\":{}}"));
+        assertEquals(-1, CacheClient.dataStart("{\"expireTime\":1,\"delta\":,\"data\":{}}"));
+        assertEquals(-1, CacheClient.dataStart("{\"expireTime\":1,\"data\":{}}"));
+    }
+
+    @Test
+    void refreshEarlyNeverWithoutDelta() {
+        assertFalse(CacheClient.shouldRefreshEarly(0, 1, 0, 1.0, 1e-9));
+    }
+
+    @Test
+    void refreshEarlyDependsOnGap() {
+        long expireAt = 10_000;
+        // rand = 1 时 ln(rand) = 0，只有到期才刷新
+        assertFalse(CacheClient.shouldRefreshEarly(9_999, expireAt, 100, 1.0, 1.0));
+        // -100 * ln(e^-1) = 100，距离过期不到100ms时刷新
+        assertTrue(CacheClient.shouldRefreshEarly(9_950, expireAt, 100, 1.0, Math.exp(-1)));
+        assertFalse(CacheClient.shouldRefreshEarly(9_850, expireAt, 100, 1.0, Math.exp(-1)));
+        // beta越大越提前
+        assertTrue(CacheClient.shouldRefreshEarly(9_800, expireAt, 100, 2.0, Math.exp(-1)));
+    }
+
+    @Test
+    void refreshEarlyProbabilityMatchesXFetch() {
+        // 距离过期 gap 时提前刷新的概率为 exp(-gap / (delta * beta))
+        long delta = 100;
+        long gap = 100;
+        int n = 200_000;
+        int refreshed = 0;
+        Random random = new Random(42);
+        for (int i = 0; i < n; i++) {
+            if (CacheClient.shouldRefreshEarly(0, gap, delta, 1.0, 1.0 - random.nextDouble())) {
+                refreshed++;
+            }
+        }
+        assertEquals(Math.exp(-1), (double) refreshed / n, 0.01);
+    }
+}
@@ -0,0 +1,91 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheRebuildSchedulerTest {
+
+    private CacheRebuildScheduler scheduler;
+
+    @BeforeEach
+    void setUp() {
+        HotKeyDetector hotKeyDetector = new HotKeyDetector();
+        ReflectionTestUtils.setField(hotKeyDetector, "sampleRate", 1.0);
+        scheduler = new CacheRebuildScheduler();
+        ReflectionTestUtils.setField(scheduler, "hotKeyDetector", hotKeyDetector);
+        ReflectionTestUtils.setField(scheduler, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(scheduler, "threads", 2);
+        ReflectionTestUtils.setField(scheduler, "queueCapacity", 10);
+        ReflectionTestUtils.invokeMethod(scheduler, "init");
+    }
+
+    @AfterEach
+    void tearDown() {
+        ReflectionTestUtils.invokeMethod(scheduler, "destroy");
+    }
+
+    @Test
+    void duplicateSubmitIsDropped() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        assertTrue(scheduler.submit("k", () -> await(release)));
+        assertFalse(scheduler.submit("k", () -> { }));
+        assertTrue(scheduler.isRebuilding("k"));
+        release.countDown();
+        waitUntilIdle("k");
+    }
+
+    @Test
+    void followUpRunsAfterPendingTask() throws InterruptedException {
+        List<String> runs = new CopyOnWriteArrayList<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit("k", () -> {
+            started.countDown();
+            await(release);
+            runs.add("stale");
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        // 正在执行时提交的刷新在其结束后执行，多次提交只保留最后一个
+        assertTrue(scheduler.submitAfterPending("k", () -> runs.add("refresh-1")));
+        assertTrue(scheduler.submitAfterPending("k", () -> runs.add("refresh-2")));
+        release.countDown();
+        waitUntilIdle("k");
+        assertEquals(2, runs.size());
+        assertEquals("stale", runs.get(0));
+        assertEquals("refresh-2", runs.get(1));
+    }
+
+    @Test
+    void followUpRunsImmediatelyWhenIdle() throws InterruptedException {
+        List<String> runs = new CopyOnWriteArrayList<>();
+        assertTrue(scheduler.submitAfterPending("k", () -> runs.add("refresh")));
+        waitUntilIdle("k");
+        assertEquals(1, runs.size());
+    }
+
+    private void waitUntilIdle(String key) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.isRebuilding(key)) {
+            assertTrue(System.currentTimeMillis() < deadline, "rebuild did not finish");
+            Thread.sleep(10);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
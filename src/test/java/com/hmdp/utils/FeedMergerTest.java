@@ -0,0 +1,148 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.ZSetOperations;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FeedMergerTest {
+
+    private static final Comparator<ZSetOperations.TypedTuple<String>> REDIS_ORDER =
+            Comparator.comparing((ZSetOperations.TypedTuple<String> t) -> t.getScore()).reversed()
+                    .thenComparing(ZSetOperations.TypedTuple::getValue, Comparator.reverseOrder());
+
+    @Test
+    void emptySources() {
+        FeedMerger.FeedPage page = FeedMerger.merge(Arrays.asList(null, Collections.emptySet()), 100, 0, 3);
+        assertTrue(page.getIds().isEmpty());
+        assertEquals(-1, page.getMinTime());
+    }
+
+    @Test
+    void sameTimeOrderedByMemberDesc() {
+        List<Set<ZSetOperations.TypedTuple<String>>> sources = Arrays.asList(
+                tuples(100, "30", "100"),
+                tuples(100, "9"));
+        FeedMerger.FeedPage page = FeedMerger.merge(sources, 200, 0, 10);
+        // 与redis一致按字典序倒序
+        assertEquals(Arrays.asList(9L, 30L, 100L), page.getIds());
+        assertEquals(100, page.getMinTime());
+        assertEquals(3, page.getOffset());
+    }
+
+    @Test
+    void dedupeAcrossSources() {
+        List<Set<ZSetOperations.TypedTuple<String>>> sources = Arrays.asList(
+                tuples(100, "1", "2"),
+                tuples(100, "2", "3"));
+        FeedMerger.FeedPage page = FeedMerger.merge(sources, 200, 0, 10);
+        assertEquals(Arrays.asList(3L, 2L, 1L), page.getIds());
+        assertEquals(3, page.getOffset());
+    }
+
+    @Test
+    void skipOffsetAtMax() {
+        Set<ZSetOperations.TypedTuple<String>> source = new HashSet<>();
+        source.addAll(tuples(100, "1", "2", "3"));
+        source.addAll(tuples(90, "4"));
+        // 上一页返回了时间戳100的 3、2
+        FeedMerger.FeedPage page = FeedMerger.merge(Collections.singletonList(source), 100, 2, 2);
+        assertEquals(Arrays.asList(1L, 4L), page.getIds());
+        assertEquals(90, page.getMinTime());
+        assertEquals(1, page.getOffset());
+    }
+
+    @Test
+    void wholePageAtMaxAccumulatesOffset() {
+        List<List<ZSetOperations.TypedTuple<String>>> sources = Collections.singletonList(
+                new ArrayList<>(tuples(100, "1", "2", "3", "4", "5")));
+        FeedMerger.FeedPage first = page(sources, 200, 0, 2);
+        assertEquals(Arrays.asList(5L, 4L), first.getIds());
+        assertEquals(2, first.getOffset());
+        FeedMerger.FeedPage second = page(sources, first.getMinTime(), first.getOffset(), 2);
+        assertEquals(Arrays.asList(3L, 2L), second.getIds());
+        // 整页与上一页同一个时间戳，下一页要跳过前两页的全部
+        assertEquals(100, second.getMinTime());
+        assertEquals(4, second.getOffset());
+        FeedMerger.FeedPage third = page(sources, second.getMinTime(), second.getOffset(), 2);
+        assertEquals(Collections.singletonList(1L), third.getIds());
+        FeedMerger.FeedPage fourth = page(sources, third.getMinTime(), third.getOffset(), 2);
+        assertTrue(fourth.getIds().isEmpty());
+    }
+
+    @Test
+    void cursorPagingCoversEveryBlogOnce() {
+        Random random = new Random(7);
+        for (int round = 0; round < 50; round++) {
+            int sourceCount = 1 + random.nextInt(3);
+            List<List<ZSetOperations.TypedTuple<String>>> sources = new ArrayList<>();
+            Map<String, Double> expected = new HashMap<>();
+            for (int s = 0; s < sourceCount; s++) {
+                sources.add(new ArrayList<>());
+            }
+            int blogs = 1 + random.nextInt(40);
+            for (int id = 1; id <= blogs; id++) {
+                // 时间戳取值很少，制造大量相同的时间戳
+                double time = 1000 + random.nextInt(5);
+                String member = String.valueOf(id);
+                expected.put(member, time);
+                // 每篇至少出现在一路中，部分同时出现在多路中
+                int first = random.nextInt(sourceCount);
+                sources.get(first).add(new DefaultTypedTuple<>(member, time));
+                for (int s = 0; s < sourceCount; s++) {
+                    if (s != first && random.nextInt(4) == 0) {
+                        sources.get(s).add(new DefaultTypedTuple<>(member, time));
+                    }
+                }
+            }
+            int size = 1 + random.nextInt(5);
+            List<Long> all = new ArrayList<>();
+            long max = 2000;
+            int offset = 0;
+            while (true) {
+                FeedMerger.FeedPage page = page(sources, max, offset, size);
+                if (page.getIds().isEmpty()) {
+                    break;
+                }
+                assertTrue(page.getIds().size() <= size);
+                all.addAll(page.getIds());
+                max = page.getMinTime();
+                offset = page.getOffset();
+            }
+            List<Long> order = expected.entrySet().stream()
+                    .map(e -> (ZSetOperations.TypedTuple<String>) new DefaultTypedTuple<>(e.getKey(), e.getValue()))
+                    .sorted(REDIS_ORDER)
+                    .map(t -> Long.valueOf(t.getValue()))
+                    .collect(Collectors.toList());
+            assertEquals(order, all, "round " + round);
+        }
+    }
+
+    /**
+     * 按 ZREVRANGEBYSCORE key max 0 LIMIT 0 offset+size 读取每一路后合并
+     */
+    private static FeedMerger.FeedPage page(List<List<ZSetOperations.TypedTuple<String>>> sources,
+                                            long max, int offset, int size) {
+        List<Set<ZSetOperations.TypedTuple<String>>> read = new ArrayList<>();
+        for (List<ZSetOperations.TypedTuple<String>> source : sources) {
+            read.add(source.stream()
+                    .filter(t -> t.getScore() <= max)
+                    .sorted(REDIS_ORDER)
+                    .limit(offset + size)
+                    .collect(Collectors.toCollection(LinkedHashSet::new)));
+        }
+        return FeedMerger.merge(read, max, offset, size);
+    }
+
+    private static Set<ZSetOperations.TypedTuple<String>> tuples(double score, String... members) {
+        Set<ZSetOperations.TypedTuple<String>> tuples = new LinkedHashSet<>();
+        for (String member : members) {
+            tuples.add(new DefaultTypedTuple<>(member, score));
+        }
+        return tuples;
+    }
+}
@@ -0,0 +1,140 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GeoGridTest {
+
+    private static final double X = 120.15;
+    private static final double Y = 30.28;
+
+    private static long[] ids(GeoGrid.Hits hits) {
+        return Arrays.copyOf(hits.ids, hits.size);
+    }
+
+    /**
+     * 暴力计算半径内的点，按 (距离, id) 排序
+     */
+    private static long[] bruteForce(long[] ids, double[] xs, double[] ys, double radius) {
+        List<Integer> rows = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (GeoGrid.distance(X, Y, xs[i], ys[i]) <= radius) {
+                rows.add(i);
+            }
+        }
+        rows.sort(Comparator.comparingDouble((Integer i) -> GeoGrid.distance(X, Y, xs[i], ys[i]))
+                .thenComparingLong(i -> ids[i]));
+        return rows.stream().mapToLong(i -> ids[i]).toArray();
+    }
+
+    @Test
+    void matchesBruteForceAcrossCells() {
+        Random random = new Random(7);
+        int n = 2000;
+        long[] ids = new long[n];
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i + 1;
+            xs[i] = X + (random.nextDouble() - 0.5) * 0.2;
+            ys[i] = Y + (random.nextDouble() - 0.5) * 0.2;
+        }
+        GeoGrid grid = new GeoGrid(0.01, ids, xs, ys);
+        for (double radius : new double[]{100, 1000, 3000, 20000}) {
+            long[] expected = bruteForce(ids, xs, ys, radius);
+            GeoGrid.Hits hits = grid.search(X, Y, radius, -1, 0, 0, n, null);
+            assertArrayEquals(expected, ids(hits), "radius " + radius);
+            for (int i = 1; i < hits.size; i++) {
+                assertTrue(hits.distances[i - 1] <= hits.distances[i]);
+            }
+            assertEquals(expected.length, grid.within(X, Y, radius, null).size);
+        }
+    }
+
+    @Test
+    void cursorPagingCoversEveryPointOnce() {
+        // 多个点在同一位置，距离相同时按id翻页
+        long[] ids = {5, 3, 9, 1, 7, 2, 8};
+        double[] xs = {X, X, X, X + 0.001, X + 0.001, X + 0.02, X - 0.03};
+        double[] ys = {Y, Y, Y, Y, Y, Y, Y};
+        GeoGrid grid = new GeoGrid(0.01, ids, xs, ys);
+        long[] all = ids(grid.search(X, Y, 10000, -1, 0, 0, 100, null));
+        assertArrayEquals(new long[]{3, 5, 9, 1, 7, 2, 8}, all);
+
+        List<Long> paged = new ArrayList<>();
+        double afterDistance = -1;
+        long afterId = 0;
+        while (true) {
+            GeoGrid.Hits page = grid.search(X, Y, 10000, afterDistance, afterId, 0, 2, null);
+            if (page.size == 0) {
+                break;
+            }
+            for (int i = 0; i < page.size; i++) {
+                paged.add(page.ids[i]);
+            }
+            afterDistance = page.distances[page.size - 1];
+            afterId = page.ids[page.size - 1];
+        }
+        assertArrayEquals(all, paged.stream().mapToLong(Long::longValue).toArray());
+    }
+
+    @Test
+    void skipPaging() {
+        long[] ids = {1, 2, 3, 4, 5};
+        double[] xs = {X + 0.001, X + 0.002, X + 0.003, X + 0.004, X + 0.005};
+        double[] ys = {Y, Y, Y, Y, Y};
+        GeoGrid grid = new GeoGrid(0.01, ids, xs, ys);
+        assertArrayEquals(new long[]{3, 4}, ids(grid.search(X, Y, 10000, -1, 0, 2, 2, null)));
+        assertArrayEquals(new long[]{5}, ids(grid.search(X, Y, 10000, -1, 0, 4, 2, null)));
+        assertEquals(0, grid.search(X, Y, 10000, -1, 0, 5, 2, null).size);
+        assertEquals(0, grid.search(X, Y, 10000, -1, 0, 0, 0, null).size);
+    }
+
+    @Test
+    void radiusAndFilter() {
+        long[] ids = {1, 2, 3, 4};
+        double[] xs = {X + 0.001, X + 0.002, X + 0.003, X + 0.1};
+        double[] ys = {Y, Y, Y, Y};
+        GeoGrid grid = new GeoGrid(0.01, ids, xs, ys);
+        // 0.001度经度约96m
+        assertArrayEquals(new long[]{1, 2}, ids(grid.search(X, Y, 250, -1, 0, 0, 10, null)));
+        // 过滤器收到的是构造时的下标
+        assertArrayEquals(new long[]{2, 3}, ids(grid.search(X, Y, 1000, -1, 0, 0, 10, row -> row != 0)));
+        GeoGrid.Hits hits = grid.search(X, Y, 1000, -1, 0, 0, 10, null);
+        assertArrayEquals(new int[]{0, 1, 2}, Arrays.copyOf(hits.rows, hits.size));
+    }
+
+    @Test
+    void emptyGrid() {
+        GeoGrid grid = new GeoGrid(0.01, new long[0], new double[0], new double[0]);
+        assertEquals(0, grid.search(X, Y, 1000, -1, 0, 0, 10, null).size);
+        assertEquals(0, grid.within(X, Y, 1000, null).size);
+    }
+
+    @Test
+    void rejectInvalidArguments() {
+        GeoGrid grid = new GeoGrid(0.01, new long[]{1}, new double[]{X}, new double[]{Y});
+        assertThrows(IllegalArgumentException.class, () -> grid.search(X, Y, 1000, -1, 0, -5, 10, null));
+        assertThrows(IllegalArgumentException.class, () -> grid.search(X, Y, 1000, -1, 0, 0, -1, null));
+        assertThrows(IllegalArgumentException.class,
+                () -> grid.search(X, Y, 1000, -1, 0, Integer.MAX_VALUE, 10, null));
+        assertThrows(IllegalArgumentException.class, () -> grid.search(X, Y, Double.NaN, -1, 0, 0, 10, null));
+        assertThrows(IllegalArgumentException.class,
+                () -> grid.search(X, Y, Double.POSITIVE_INFINITY, -1, 0, 0, 10, null));
+        assertThrows(IllegalArgumentException.class, () -> grid.within(Double.NaN, Y, 1000, null));
+    }
+
+    @Test
+    void distanceMatchesHaversine() {
+        // 赤道上1度经度约111km
+        assertEquals(111226, GeoGrid.distance(0, 0, 1, 0), 10);
+        assertEquals(0, GeoGrid.distance(X, Y, X, Y), 1e-9);
+    }
+}
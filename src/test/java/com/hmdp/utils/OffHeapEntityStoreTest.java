@@ -0,0 +1,138 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffHeapEntityStoreTest {
+
+    private static final long FOREVER = Long.MAX_VALUE;
+
+    /**
+     * 记录头 20 字节 + 30 字节数据 = 50 字节
+     */
+    private static final int DATA_SIZE = 30;
+
+    @Test
+    void putAndGet() {
+        OffHeapEntityStore store = new OffHeapEntityStore(2, 1024);
+        assertNull(store.get(1));
+        assertTrue(store.put(1, FOREVER, bytes("a")));
+        assertTrue(store.put(2, FOREVER, bytes("b")));
+        assertEquals("a", string(store.get(1)));
+        assertEquals("b", string(store.get(2)));
+        // 覆盖写入读到最新的
+        assertTrue(store.put(1, FOREVER, bytes("aa")));
+        assertEquals("aa", string(store.get(1)));
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    void expiredReturnsNull() {
+        OffHeapEntityStore store = new OffHeapEntityStore(2, 1024);
+        store.put(1, System.currentTimeMillis() - 1, bytes("a"));
+        assertNull(store.get(1));
+    }
+
+    @Test
+    void rejectRecordLargerThanSegment() {
+        OffHeapEntityStore store = new OffHeapEntityStore(2, 100);
+        assertTrue(store.put(1, FOREVER, new byte[80]));
+        assertFalse(store.put(2, FOREVER, new byte[81]));
+        assertNull(store.get(2));
+    }
+
+    @Test
+    void segmentsAllocatedLazily() {
+        OffHeapEntityStore store = new OffHeapEntityStore(4, 100);
+        assertEquals(0, store.allocatedBytes());
+        store.put(1, FOREVER, new byte[DATA_SIZE]);
+        store.put(2, FOREVER, new byte[DATA_SIZE]);
+        assertEquals(100, store.allocatedBytes());
+        // 第一段写满，切换到第二段
+        store.put(3, FOREVER, new byte[DATA_SIZE]);
+        assertEquals(200, store.allocatedBytes());
+    }
+
+    @Test
+    void reusedSegmentEvictsOldRecords() {
+        // 每段正好放下两条记录
+        OffHeapEntityStore store = new OffHeapEntityStore(2, 100);
+        for (int id = 1; id <= 4; id++) {
+            store.put(id, FOREVER, record(id));
+        }
+        for (int id = 1; id <= 4; id++) {
+            assertArrayEquals(record(id), store.get(id));
+        }
+        // 第三段复用第一段，1、2被淘汰
+        store.put(5, FOREVER, record(5));
+        assertNull(store.get(1));
+        assertNull(store.get(2));
+        assertArrayEquals(record(3), store.get(3));
+        assertArrayEquals(record(4), store.get(4));
+        assertArrayEquals(record(5), store.get(5));
+        assertEquals(200, store.allocatedBytes());
+    }
+
+    @Test
+    void rewrittenRecordSurvivesEvictionOfOldCopy() {
+        OffHeapEntityStore store = new OffHeapEntityStore(2, 100);
+        store.put(1, FOREVER, record(1));
+        store.put(2, FOREVER, record(2));
+        store.put(3, FOREVER, record(3));
+        // 1 重新写入第二段，第一段被复用后仍能读到
+        store.put(1, FOREVER, record(11));
+        store.put(4, FOREVER, record(4));
+        assertArrayEquals(record(11), store.get(1));
+        assertNull(store.get(2));
+    }
+
+    @Test
+    void removeKeepsProbeChains() {
+        OffHeapEntityStore store = new OffHeapEntityStore(4, 64 * 1024);
+        int n = 5000;
+        for (int id = 1; id <= n; id++) {
+            assertTrue(store.put(id, FOREVER, bytes(String.valueOf(id))));
+        }
+        for (int id = 1; id <= n; id += 2) {
+            store.remove(id);
+        }
+        for (int id = 1; id <= n; id++) {
+            if (id % 2 == 1) {
+                assertNull(store.get(id));
+            } else {
+                assertEquals(String.valueOf(id), string(store.get(id)));
+            }
+        }
+        assertEquals(n / 2, store.size());
+    }
+
+    @Test
+    void resizeDropsEvictedEntries() {
+        OffHeapEntityStore store = new OffHeapEntityStore(2, 100);
+        for (int id = 1; id <= 2000; id++) {
+            store.put(id, FOREVER, record(id));
+        }
+        // 只有最近两段的记录有效，扩容时淘汰项被清理，索引不会随写入次数增长
+        assertTrue(store.size() <= 512, "size " + store.size());
+        assertArrayEquals(record(2000), store.get(2000));
+        assertNull(store.get(1));
+    }
+
+    private static byte[] record(int id) {
+        byte[] data = new byte[DATA_SIZE];
+        data[0] = (byte) id;
+        data[DATA_SIZE - 1] = (byte) (id >> 8);
+        return data;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] data) {
+        return data == null ? null : new String(data, StandardCharsets.UTF_8);
+    }
+}
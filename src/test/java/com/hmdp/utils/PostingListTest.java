@@ -0,0 +1,53 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PostingListTest {
+
+    @Test
+    void roundTrip() {
+        long[] ids = {1, 2, 3, 127, 128, 129, 16_383, 16_384, 1L << 40, Long.MAX_VALUE};
+        assertArrayEquals(ids, PostingList.decode(PostingList.encode(ids, ids.length)));
+    }
+
+    @Test
+    void encodeOnlyFirstN() {
+        long[] ids = {5, 9, 100, 0};
+        assertArrayEquals(new long[]{5, 9, 100}, PostingList.decode(PostingList.encode(ids, 3)));
+        assertEquals(0, PostingList.encode(ids, 0).length);
+        assertEquals(0, PostingList.decode(new byte[0]).length);
+    }
+
+    @Test
+    void smallGapsTakeOneByte() {
+        long[] ids = new long[100];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = 1000 + i * 3;
+        }
+        // 第一个id 1000 需要2字节，之后每个差值3占1字节
+        assertEquals(2 + 99, PostingList.encode(ids, ids.length).length);
+    }
+
+    @Test
+    void addKeepsOrderAndIgnoresDuplicates() {
+        byte[] data = PostingList.add(null, 50);
+        data = PostingList.add(data, 10);
+        data = PostingList.add(data, 300);
+        data = PostingList.add(data, 20);
+        assertArrayEquals(new long[]{10, 20, 50, 300}, PostingList.decode(data));
+        assertSame(data, PostingList.add(data, 20));
+    }
+
+    @Test
+    void remove() {
+        byte[] data = PostingList.encode(new long[]{10, 20, 50}, 3);
+        assertSame(data, PostingList.remove(data, 30));
+        data = PostingList.remove(data, 20);
+        assertArrayEquals(new long[]{10, 50}, PostingList.decode(data));
+        data = PostingList.remove(data, 10);
+        assertArrayEquals(new long[]{50}, PostingList.decode(data));
+        assertNull(PostingList.remove(data, 50));
+    }
+}
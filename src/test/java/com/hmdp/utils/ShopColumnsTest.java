@@ -0,0 +1,148 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.ShopFilter;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShopColumnsTest {
+
+    private static final int WORDS = (24 * 60 + 63) / 64;
+
+    private static boolean open(String openHours, int hour, int minute) {
+        long[] bits = new long[WORDS];
+        ShopColumns.parseOpenHours(openHours, bits, 0);
+        int m = hour * 60 + minute;
+        return (bits[m >>> 6] & (1L << (m & 63))) != 0;
+    }
+
+    @Test
+    void parseSimpleRange() {
+        assertFalse(open("10:00-22:00", 9, 59));
+        assertTrue(open("10:00-22:00", 10, 0));
+        assertTrue(open("10:00-22:00", 21, 59));
+        // 结束时间不含
+        assertFalse(open("10:00-22:00", 22, 0));
+        assertTrue(open("10：00 ~ 22：00", 12, 0));
+    }
+
+    @Test
+    void parseOvernightRange() {
+        String hours = "18:00-次日02:00";
+        assertFalse(open(hours, 17, 59));
+        assertTrue(open(hours, 18, 0));
+        assertTrue(open(hours, 23, 59));
+        assertTrue(open(hours, 0, 0));
+        assertTrue(open(hours, 1, 59));
+        assertFalse(open(hours, 2, 0));
+        assertFalse(open(hours, 12, 0));
+        // 没有"次日"但结束早于开始，同样视为跨过零点
+        assertTrue(open("22:00-03:30", 3, 0));
+        assertFalse(open("22:00-03:30", 3, 30));
+    }
+
+    @Test
+    void parseMultipleRangesAndAllDay() {
+        String hours = "11:00-14:00，17:00-21:00";
+        assertTrue(open(hours, 12, 0));
+        assertFalse(open(hours, 15, 0));
+        assertTrue(open(hours, 20, 0));
+        assertTrue(open("24小时营业", 4, 0));
+        assertTrue(open("全天", 23, 59));
+        // 开始等于结束视为全天
+        assertTrue(open("00:00-00:00", 13, 0));
+        assertTrue(open("08:00-24:00", 23, 59));
+    }
+
+    @Test
+    void unparseableIsClosed() {
+        assertFalse(open(null, 12, 0));
+        assertFalse(open("周一休息", 12, 0));
+        assertFalse(open("25:00-26:00", 12, 0));
+    }
+
+    private static Shop shop(long id, double x, double y, Long avgPrice, int score, int sold, String openHours) {
+        return new Shop().setId(id).setX(x).setY(y).setTypeId(1L)
+                .setAvgPrice(avgPrice).setScore(score).setSold(sold).setOpenHours(openHours);
+    }
+
+    private static long[] ids(GeoGrid.Hits hits) {
+        return Arrays.copyOf(hits.ids, hits.size);
+    }
+
+    private static final double X = 120.15;
+    private static final double Y = 30.28;
+
+    private static ShopColumns table() {
+        return ShopColumns.of(0.01, Arrays.asList(
+                shop(1, X + 0.001, Y, 50L, 45, 100, "10:00-22:00"),
+                shop(2, X + 0.002, Y, 120L, 48, 10, "18:00-次日02:00"),
+                shop(3, X + 0.003, Y, null, 40, 500, "24小时"),
+                shop(4, X + 0.004, Y, 80L, 49, 50, "10:00-22:00"),
+                shop(5, X + 0.5, Y, 10L, 50, 1000, "24小时")));
+    }
+
+    @Test
+    void filterOnlyNearbyRows() {
+        ShopFilter filter = new ShopFilter();
+        filter.setMaxPrice(100L);
+        // 均价未知的店铺不满足最高均价，远处的店铺不在半径内
+        GeoGrid.Hits hits = table().search(X, Y, 5000, filter, 12 * 60, -1, 0, 0, 10);
+        assertArrayEquals(new long[]{1, 4}, ids(hits));
+
+        filter = new ShopFilter();
+        filter.setOpenNow(true);
+        hits = table().search(X, Y, 5000, filter, 23 * 60, -1, 0, 0, 10);
+        assertArrayEquals(new long[]{2, 3}, ids(hits));
+
+        filter.setMinScore(45);
+        hits = table().search(X, Y, 5000, filter, 60, -1, 0, 0, 10);
+        assertArrayEquals(new long[]{2}, ids(hits));
+    }
+
+    @Test
+    void sortByOtherFields() {
+        ShopFilter filter = new ShopFilter();
+        filter.setSortBy(ShopFilter.SORT_SOLD);
+        assertArrayEquals(new long[]{3, 1, 4, 2}, ids(table().search(X, Y, 5000, filter, 0, -1, 0, 0, 10)));
+        assertArrayEquals(new long[]{4, 2}, ids(table().search(X, Y, 5000, filter, 0, -1, 0, 2, 2)));
+        filter.setSortBy(ShopFilter.SORT_PRICE);
+        // 均价未知的排在最后
+        assertArrayEquals(new long[]{1, 4, 2, 3}, ids(table().search(X, Y, 5000, filter, 0, -1, 0, 0, 10)));
+    }
+
+    @Test
+    void withAndWithout() {
+        ShopColumns table = table();
+        ShopColumns moved = table.with(shop(1, X + 0.005, Y, 50L, 45, 100, "10:00-22:00"));
+        assertEquals(5, moved.size());
+        assertArrayEquals(new long[]{2, 3, 4, 1}, ids(moved.search(X, Y, 5000, new ShopFilter(), 0, -1, 0, 0, 10)));
+        ShopColumns added = moved.with(shop(6, X, Y, 50L, 45, 100, null));
+        assertEquals(6, added.size());
+        assertEquals(6, ids(added.search(X, Y, 5000, new ShopFilter(), 0, -1, 0, 0, 1))[0]);
+        ShopColumns removed = added.without(3);
+        assertArrayEquals(new long[]{6, 2, 4, 1}, ids(removed.search(X, Y, 5000, new ShopFilter(), 0, -1, 0, 0, 10)));
+        assertSame(removed, removed.without(3));
+        // 原表不受影响
+        assertEquals(5, table.size());
+    }
+
+    @Test
+    void geoIndexMovesShopBetweenTypes() {
+        ShopGeoIndex index = new ShopGeoIndex();
+        ReflectionTestUtils.setField(index, "cellSize", 0.01);
+        index.load(Arrays.asList(shop(1, X, Y, 50L, 45, 100, null), shop(2, X, Y, 50L, 45, 100, null)));
+        index.put(shop(1, X, Y, 50L, 45, 100, null).setTypeId(2L));
+        ShopFilter filter = new ShopFilter();
+        assertArrayEquals(new long[]{2}, ids(index.search(1, X, Y, 1000, filter, -1, 0, 0, 10)));
+        assertArrayEquals(new long[]{1}, ids(index.search(2, X, Y, 1000, filter, -1, 0, 0, 10)));
+        index.remove(1);
+        assertEquals(0, index.search(2, X, Y, 1000, filter, -1, 0, 0, 10).size);
+        index.remove(42);
+        assertArrayEquals(new long[]{2}, ids(index.search(1, X, Y, 1000, filter, -1, 0, 0, 10)));
+    }
+}
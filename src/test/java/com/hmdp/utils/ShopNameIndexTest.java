@@ -0,0 +1,105 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShopNameIndexTest {
+
+    private static Shop shop(long id, String name, String area, int sold) {
+        return new Shop().setId(id).setName(name).setArea(area).setSold(sold).setScore(40);
+    }
+
+    private static ShopNameIndex load(Shop... shops) {
+        ShopNameIndex index = new ShopNameIndex();
+        ShopNameIndex.Builder builder = index.builder();
+        for (Shop shop : shops) {
+            builder.add(shop);
+        }
+        builder.commit();
+        return index;
+    }
+
+    @Test
+    void rankByPrefixThenContainsThenArea() {
+        ShopNameIndex index = load(
+                shop(1, "老张火锅", "大关", 10),
+                shop(2, "火锅之家", "拱宸桥", 5),
+                shop(3, "小笼包", "火锅街", 100),
+                shop(4, "海底捞火锅", "运河", 50));
+        assertEquals(Arrays.asList(2L, 4L, 1L, 3L), index.search("火锅", 0, 10));
+        // 分页
+        assertEquals(Arrays.asList(1L, 3L), index.search("火锅", 2, 10));
+        assertEquals(Collections.emptyList(), index.search("火锅", 10, 10));
+    }
+
+    @Test
+    void bigramCandidatesAreVerified() {
+        // "锅火锅" 包含 "火锅火" 的全部bigram(火锅、锅火)，但不包含查询词本身，需要用原文校验排除
+        ShopNameIndex index = load(shop(1, "锅火锅", null, 0), shop(2, "火锅火", null, 0));
+        assertEquals(Collections.singletonList(2L), index.search("火锅火", 0, 10));
+        // 单字查单字的倒排列表，以查询词开头的排在前面
+        assertEquals(Arrays.asList(2L, 1L), index.search("火", 0, 10));
+    }
+
+    @Test
+    void multipleWordsMustAllMatch() {
+        ShopNameIndex index = load(shop(1, "Cafe 咖啡", "西湖", 0), shop(2, "咖啡馆", "拱墅", 0));
+        assertEquals(Collections.singletonList(1L), index.search("咖啡 西湖", 0, 10));
+        assertEquals(Collections.singletonList(1L), index.search("CAFE", 0, 10));
+    }
+
+    @Test
+    void rejectNegativeSkip() {
+        ShopNameIndex index = load(shop(1, "火锅", null, 0));
+        assertThrows(IllegalArgumentException.class, () -> index.search("火锅", -10, 10));
+    }
+
+    @Test
+    void updatesAfterLoad() {
+        ShopNameIndex index = load(shop(1, "老张火锅", null, 0));
+        index.put(shop(1, "老张烧烤", null, 0));
+        index.put(shop(2, "火锅", null, 0));
+        assertEquals(Collections.singletonList(2L), index.search("火锅", 0, 10));
+        index.remove(2);
+        assertEquals(Collections.emptyList(), index.search("火锅", 0, 10));
+    }
+
+    @Test
+    void changesDuringRebuildAreReplayed() {
+        ShopNameIndex index = load(shop(1, "老张火锅", null, 0), shop(2, "火锅之家", null, 0));
+        ShopNameIndex.Builder builder = index.builder();
+        // 构建读到的是修改前的数据
+        builder.add(shop(1, "老张火锅", null, 0));
+        builder.add(shop(2, "火锅之家", null, 0));
+        index.put(shop(3, "新开火锅", null, 0));
+        index.remove(2);
+        index.put(shop(1, "老张烧烤", null, 0));
+        builder.commit();
+        assertEquals(Collections.singletonList(3L), index.search("火锅", 0, 10));
+        assertEquals(Collections.singletonList(1L), index.search("烧烤", 0, 10));
+    }
+
+    @Test
+    void changesBeforeFirstLoadAreReplayed() {
+        ShopNameIndex index = new ShopNameIndex();
+        ShopNameIndex.Builder builder = index.builder();
+        builder.add(shop(1, "火锅", null, 0));
+        index.put(shop(2, "火锅店", null, 0));
+        builder.commit();
+        assertEquals(Arrays.asList(1L, 2L), index.search("火锅", 0, 10));
+    }
+
+    @Test
+    void abortedRebuildKeepsOldIndex() {
+        ShopNameIndex index = load(shop(1, "火锅", null, 0));
+        ShopNameIndex.Builder builder = index.builder();
+        builder.add(shop(9, "火锅", null, 0));
+        builder.abort();
+        assertEquals(Collections.singletonList(1L), index.search("火锅", 0, 10));
+    }
+}